@@ -0,0 +1,35 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Default {@link TusTransport} which issues every request using {@link HttpURLConnection}.
+ *
+ * @author ksvraja
+ *
+ */
+public class HttpURLConnectionTransport implements TusTransport {
+
+	@Override
+	public TusConnection openConnection(URL url) throws IOException {
+		return new HttpURLConnectionWrapper((HttpURLConnection) url.openConnection());
+	}
+}
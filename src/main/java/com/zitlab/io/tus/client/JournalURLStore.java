@@ -0,0 +1,418 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * {@link TusURLStore} persisted in an append-only journal file, so resuming survives a restart
+ * or crash of the process.
+ * <ul>
+ * <li>Reads are served from a {@link ConcurrentHashMap} without taking any lock.</li>
+ * <li>Every change is appended as a checksummed record. Concurrent writers are group
+ * committed: one of them writes all pending records and calls fsync once for all of them, and
+ * each writer returns once its own record is durable.</li>
+ * <li>Once the journal holds many more records than live entries, it is compacted in the
+ * background by writing a fresh journal and atomically replacing the old one.</li>
+ * </ul>
+ * A record torn by a crash is detected by its checksum and cut off when the store is opened. A
+ * write which fails is cut off right away, and its records stay pending for the next commit.
+ *
+ * @author ksvraja
+ *
+ */
+public class JournalURLStore implements TusURLStore, Closeable {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final File file;
+    private final Map<String, String> entries = new ConcurrentHashMap<String, String>();
+    private final Object commitLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new TusThreadFactory("tus-journal"));
+
+    private FileChannel channel;
+    // Length of the journal up to the last record which was written completely.
+    private long durableSize;
+    private volatile IOException broken;
+    private List<byte[]> pending = new ArrayList<byte[]>();
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean committing;
+    private boolean compacting;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Open the journal at the given path, creating it if it does not exist, and load its entries.
+     *
+     * @param file Journal file
+     * @throws IOException Thrown if the journal cannot be read or created
+     */
+    public JournalURLStore(File file) throws IOException {
+        this.file = file;
+        load();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        durableSize = channel.size();
+        channel.position(durableSize);
+    }
+
+    @Override
+    public String get(String fingerprint) {
+        if(fingerprint == null) {
+            return null;
+        }
+        return entries.get(fingerprint);
+    }
+
+    @Override
+    public void put(String fingerprint, String url) {
+        long sequence;
+        synchronized(commitLock) {
+            // The map and the journal are changed under the same lock, so both see the changes
+            // to one fingerprint in the same order.
+            checkOpen();
+            entries.put(fingerprint, url);
+            sequence = append(encode(PUT, fingerprint, url));
+        }
+        awaitDurable(sequence);
+        maybeCompact();
+    }
+
+    /**
+     * Appends all entries and waits for a single sync covering them.
+     */
+    @Override
+    public void putAll(Map<String, String> entries) {
+        if(entries.isEmpty()) {
+            return;
+        }
+        long sequence;
+        synchronized(commitLock) {
+            checkOpen();
+            sequence = appendedSequence;
+            for(Map.Entry<String, String> entry : entries.entrySet()) {
+                this.entries.put(entry.getKey(), entry.getValue());
+                sequence = append(encode(PUT, entry.getKey(), entry.getValue()));
+            }
+        }
+        awaitDurable(sequence);
+        maybeCompact();
+    }
+
+    @Override
+    public void remove(String fingerprint) {
+        long sequence;
+        synchronized(commitLock) {
+            checkOpen();
+            if(entries.remove(fingerprint) == null) {
+                return;
+            }
+            sequence = append(encode(REMOVE, fingerprint, ""));
+        }
+        awaitDurable(sequence);
+        maybeCompact();
+    }
+
+    /**
+     * @return Number of fingerprints currently stored
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("journal store has been closed");
+        }
+    }
+
+    private long append(byte[] record) {
+        pending.add(record);
+        return ++appendedSequence;
+    }
+
+    /**
+     * Wait until the record with the given sequence number has been written and synced. The first
+     * writer to find no commit in progress becomes the leader and commits every pending record,
+     * while the others wait for it.
+     */
+    private void awaitDurable(long sequence) {
+        List<byte[]> batch;
+        long batchEnd;
+        synchronized(commitLock) {
+            while(durableSequence < sequence && committing) {
+                waitForCommit();
+            }
+            if(durableSequence >= sequence) {
+                return;
+            }
+            committing = true;
+            batch = pending;
+            pending = new ArrayList<byte[]>();
+            batchEnd = appendedSequence;
+        }
+
+        IOException error = null;
+        try {
+            write(batch);
+        } catch(IOException e) {
+            error = e;
+        } finally {
+            synchronized(commitLock) {
+                committing = false;
+                if(error == null) {
+                    durableSequence = batchEnd;
+                    records += batch.size();
+                } else {
+                    // Put back in front of what was appended since, so the writers waiting for
+                    // these records write them again instead of taking them as durable.
+                    batch.addAll(pending);
+                    pending = batch;
+                }
+                commitLock.notifyAll();
+            }
+        }
+        if(error != null) {
+            throw new UncheckedIOException("writing journal " + file + " failed", error);
+        }
+    }
+
+    private void waitForCommit() {
+        try {
+            commitLock.wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for journal commit");
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        if(broken != null) {
+            throw new IOException("journal could not be repaired after a failed write", broken);
+        }
+        int length = 0;
+        for(byte[] record : batch) {
+            length += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for(byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch(IOException e) {
+            rollBack(e);
+            throw e;
+        }
+        durableSize = channel.position();
+    }
+
+    /**
+     * Cut off what a failed write may have left, since loading stops at the first torn record and
+     * would lose every record written after it.
+     */
+    private void rollBack(IOException error) {
+        try {
+            channel.truncate(durableSize);
+            channel.position(durableSize);
+        } catch(IOException e) {
+            error.addSuppressed(e);
+            broken = error;
+        }
+    }
+
+    private void maybeCompact() {
+        synchronized(commitLock) {
+            if(compacting || closed || records < MIN_COMPACTION_RECORDS || records < 2L * entries.size()) {
+                return;
+            }
+            compacting = true;
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch(IOException e) {
+                    // The old journal is still intact, compaction is retried after the next write.
+                } finally {
+                    synchronized(commitLock) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrite the journal so it only holds the live entries. Writers are blocked while the new
+     * journal is written, readers are not.
+     *
+     * @throws IOException Thrown if the new journal cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized(commitLock) {
+            while(committing) {
+                waitForCommit();
+            }
+            if(closed) {
+                return;
+            }
+            // Commit what is pending first, so the snapshot below covers every write.
+            write(pending);
+            records += pending.size();
+            durableSequence = appendedSequence;
+            pending = new ArrayList<byte[]>();
+
+            File temp = new File(file.getPath() + ".compact");
+            FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            long written = 0;
+            try {
+                for(Map.Entry<String, String> entry : entries.entrySet()) {
+                    ByteBuffer record = ByteBuffer.wrap(encode(PUT, entry.getKey(), entry.getValue()));
+                    while(record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    written++;
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            durableSize = channel.size();
+            channel.position(durableSize);
+            records = written;
+            commitLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized(commitLock) {
+            while(committing) {
+                waitForCommit();
+            }
+            if(closed) {
+                return;
+            }
+            closed = true;
+            write(pending);
+            pending.clear();
+            channel.close();
+        }
+        compactor.shutdown();
+    }
+
+    private void load() throws IOException {
+        if(!file.exists()) {
+            return;
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long valid = 0;
+        while(buffer.remaining() >= 13) {
+            int start = buffer.position();
+            byte op = buffer.get();
+            int keyLength = buffer.getInt();
+            int urlLength = buffer.getInt();
+            if(keyLength < 0 || urlLength < 0 || buffer.remaining() < (long) keyLength + urlLength + 4) {
+                break;
+            }
+            String key = new String(data, buffer.position(), keyLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + keyLength);
+            String url = new String(data, buffer.position(), urlLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + urlLength);
+
+            CRC32 crc = new CRC32();
+            crc.update(data, start, buffer.position() - start);
+            if(buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            if(op == PUT) {
+                entries.put(key, url);
+            } else if(op == REMOVE) {
+                entries.remove(key);
+            } else {
+                break;
+            }
+            records++;
+            valid = buffer.position();
+        }
+
+        if(valid < data.length) {
+            // Cut off a record torn by a crash while it was written.
+            FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            try {
+                truncate.truncate(valid);
+                truncate.force(false);
+            } finally {
+                truncate.close();
+            }
+        }
+    }
+
+    private static byte[] encode(byte op, String fingerprint, String url) {
+        byte[] key = fingerprint.getBytes(StandardCharsets.UTF_8);
+        byte[] value = url.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13 + key.length + value.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeInt(key.length);
+            out.writeInt(value.length);
+            out.write(key);
+            out.write(value);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        } catch(IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,455 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link TusURLStore} for millions of fingerprints, kept in a memory-mapped open-addressing hash
+ * index next to an append-only data file. Only the index is held in (mapped) memory, so the heap
+ * use does not grow with the number of entries, and the store survives a restart.
+ *
+ * Entries can be given a time to live, after which they are treated as absent. Expired and
+ * removed entries are dropped and the data file is compacted whenever the index is rebuilt,
+ * either because it grew or by calling {@link #purgeExpired()}.
+ *
+ * The files are <code>&lt;base&gt;.idx</code> and <code>&lt;base&gt;.dat</code>.
+ *
+ * @author ksvraja
+ *
+ */
+public class MappedURLStore implements TusURLStore, Closeable {
+    private static final int MAGIC = 0x54555349;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 32;
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int REMOVED = 2;
+    private static final double MAX_LOAD = 0.7;
+
+    private final File indexFile;
+    private final File dataFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long timeToLive = -1;
+
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private FileChannel data;
+    private long dataEnd;
+    private int capacity;
+    private int used;
+    private int live;
+
+    /**
+     * @param base Path the index and data file names are derived from
+     * @throws IOException Thrown if the files cannot be opened or created
+     */
+    public MappedURLStore(File base) throws IOException {
+        this(base, 1 << 16);
+    }
+
+    /**
+     * @param base Path the index and data file names are derived from
+     * @param initialCapacity Number of index slots for a new store, rounded up to a power of two
+     * @throws IOException Thrown if the files cannot be opened or created
+     */
+    public MappedURLStore(File base, int initialCapacity) throws IOException {
+        this.indexFile = new File(base.getPath() + ".idx");
+        this.dataFile = new File(base.getPath() + ".dat");
+        data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        dataEnd = data.size();
+
+        if(indexFile.exists() && indexFile.length() >= HEADER_SIZE) {
+            openIndex(indexFile);
+            if(index.getInt(0) != MAGIC) {
+                throw new IOException("not a URL store index: " + indexFile);
+            }
+            capacity = index.getInt(4);
+            used = index.getInt(8);
+            live = index.getInt(12);
+        } else {
+            capacity = Math.max(16, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1);
+            createIndex(indexFile, capacity);
+            openIndex(indexFile);
+        }
+    }
+
+    /**
+     * Sets the time to live of entries stored from now on. A negative value, the default, keeps
+     * entries until they are removed.
+     */
+    public void setTimeToLive(long duration, TimeUnit unit) {
+        this.timeToLive = duration < 0 ? -1 : unit.toMillis(duration);
+    }
+
+    public long getTimeToLive(TimeUnit unit) {
+        return timeToLive < 0 ? -1 : unit.convert(timeToLive, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String get(String fingerprint) {
+        if(fingerprint == null) {
+            return null;
+        }
+
+        byte[] key = fingerprint.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        long now = System.currentTimeMillis();
+
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash);
+            if(slot < 0 || index.getLong(slotOffset(slot) + 16) < now) {
+                return null;
+            }
+            return readValue(index.getLong(slotOffset(slot) + 8));
+        } catch(IOException e) {
+            throw new UncheckedIOException("reading " + dataFile + " failed", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String fingerprint, String url) {
+        byte[] key = fingerprint.getBytes(StandardCharsets.UTF_8);
+        byte[] value = url.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        long expiresAt = timeToLive < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeToLive;
+
+        lock.writeLock().lock();
+        try {
+            if(used + 1 > capacity * MAX_LOAD) {
+                // Grow only if the live entries need it, otherwise dropping the removed and
+                // expired ones makes enough room.
+                rebuild(live + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+            }
+
+            // The record is written before the slot points to it, so a crash in between leaves
+            // at most an unreferenced record behind.
+            long dataOffset = appendRecord(key, value);
+
+            int slot = find(key, hash);
+            if(slot < 0) {
+                slot = freeSlot(hash);
+                if(index.getInt(slotOffset(slot) + 24) == EMPTY) {
+                    used++;
+                }
+                live++;
+            }
+            writeSlot(slot, hash, dataOffset, expiresAt);
+            writeCounts();
+        } catch(IOException e) {
+            throw new UncheckedIOException("writing " + dataFile + " failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores all entries under one acquisition of the write lock.
+     */
+    @Override
+    public void putAll(Map<String, String> entries) {
+        lock.writeLock().lock();
+        try {
+            for(Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(String fingerprint) {
+        byte[] key = fingerprint.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if(slot >= 0) {
+                index.putInt(slotOffset(slot) + 24, REMOVED);
+                live--;
+                writeCounts();
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException("reading " + dataFile + " failed", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of stored fingerprints, including expired ones not purged yet
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop expired and removed entries and rewrite the data file without them.
+     *
+     * @throws IOException Thrown if the new files cannot be written
+     */
+    public void purgeExpired() throws IOException {
+        lock.writeLock().lock();
+        try {
+            rebuild(capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write all changes to the storage device.
+     *
+     * @throws IOException Thrown if syncing fails
+     */
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            data.force(false);
+            index.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            data.force(false);
+            index.force();
+            data.close();
+            indexChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int find(byte[] key, long hash) throws IOException {
+        int mask = capacity - 1;
+        for(int i = 0, slot = (int) hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+            int offset = slotOffset(slot);
+            int state = index.getInt(offset + 24);
+            if(state == EMPTY) {
+                return -1;
+            }
+            if(state == USED && index.getLong(offset) == hash && keyEquals(index.getLong(offset + 8), key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(long hash) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while(index.getInt(slotOffset(slot) + 24) == USED) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void writeSlot(int slot, long hash, long dataOffset, long expiresAt) {
+        int offset = slotOffset(slot);
+        index.putLong(offset, hash);
+        index.putLong(offset + 8, dataOffset);
+        index.putLong(offset + 16, expiresAt);
+        index.putInt(offset + 24, USED);
+    }
+
+    private void writeCounts() {
+        index.putInt(8, used);
+        index.putInt(12, live);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private long appendRecord(byte[] key, byte[] value) throws IOException {
+        long offset = dataEnd;
+        ByteBuffer record = ByteBuffer.allocate(8 + key.length + value.length);
+        record.putInt(key.length).putInt(value.length).put(key).put(value).flip();
+        long position = offset;
+        while(record.hasRemaining()) {
+            position += data.write(record, position);
+        }
+        dataEnd = position;
+        return offset;
+    }
+
+    private boolean keyEquals(long dataOffset, byte[] key) throws IOException {
+        if(dataOffset + 8 + key.length > dataEnd) {
+            return false;
+        }
+        ByteBuffer header = readFully(dataOffset, 8);
+        if(header.getInt() != key.length) {
+            return false;
+        }
+        ByteBuffer stored = readFully(dataOffset + 8, key.length);
+        return stored.equals(ByteBuffer.wrap(key));
+    }
+
+    private String readValue(long dataOffset) throws IOException {
+        ByteBuffer header = readFully(dataOffset, 8);
+        int keyLength = header.getInt();
+        int valueLength = header.getInt();
+        ByteBuffer value = readFully(dataOffset + 8 + keyLength, valueLength);
+        return new String(value.array(), 0, valueLength, StandardCharsets.UTF_8);
+    }
+
+    private byte[] readKey(long dataOffset) throws IOException {
+        ByteBuffer header = readFully(dataOffset, 8);
+        return readFully(dataOffset + 8, header.getInt()).array();
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(data.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of " + dataFile);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write a new index with the given capacity and a new data file holding only the live,
+     * unexpired entries, then swap both in.
+     */
+    private void rebuild(int newCapacity) throws IOException {
+        File newIndexFile = new File(indexFile.getPath() + ".rebuild");
+        File newDataFile = new File(dataFile.getPath() + ".rebuild");
+        createIndex(newIndexFile, newCapacity);
+
+        FileChannel newIndexChannel = FileChannel.open(newIndexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer newIndex = newIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, newIndexChannel.size());
+        FileChannel newData = FileChannel.open(newDataFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        int mask = newCapacity - 1;
+        try {
+            for(int slot = 0; slot < capacity; slot++) {
+                int offset = slotOffset(slot);
+                if(index.getInt(offset + 24) != USED || index.getLong(offset + 16) < now) {
+                    continue;
+                }
+
+                long hash = index.getLong(offset);
+                long dataOffset = index.getLong(offset + 8);
+                byte[] key = readKey(dataOffset);
+                byte[] value = readValue(dataOffset).getBytes(StandardCharsets.UTF_8);
+
+                long newOffset = newData.size();
+                ByteBuffer record = ByteBuffer.allocate(8 + key.length + value.length);
+                record.putInt(key.length).putInt(value.length).put(key).put(value).flip();
+                long position = newOffset;
+                while(record.hasRemaining()) {
+                    position += newData.write(record, position);
+                }
+
+                int target = (int) hash & mask;
+                while(newIndex.getInt(slotOffset(target) + 24) == USED) {
+                    target = (target + 1) & mask;
+                }
+                int newSlot = slotOffset(target);
+                newIndex.putLong(newSlot, hash);
+                newIndex.putLong(newSlot + 8, newOffset);
+                newIndex.putLong(newSlot + 16, index.getLong(offset + 16));
+                newIndex.putInt(newSlot + 24, USED);
+                count++;
+            }
+            newIndex.putInt(8, count);
+            newIndex.putInt(12, count);
+            newData.force(false);
+            newIndex.force();
+        } finally {
+            newData.close();
+            newIndexChannel.close();
+        }
+
+        data.close();
+        indexChannel.close();
+        // A crash between the two moves leaves the old index next to the new data file.
+        // Lookups compare the stored key, so they then miss instead of returning wrong URLs.
+        Files.move(newDataFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        dataEnd = data.size();
+        openIndex(indexFile);
+        capacity = newCapacity;
+        used = count;
+        live = count;
+    }
+
+    private void openIndex(File file) throws IOException {
+        indexChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+    }
+
+    private static void createIndex(File file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(capacity).putInt(0).putInt(0).flip();
+            channel.write(header, 0);
+            // Extend the file to its full size. The slots read as zero, i.e. EMPTY.
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key.
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
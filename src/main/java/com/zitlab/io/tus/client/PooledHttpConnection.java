@@ -0,0 +1,628 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link TusConnection} sending one HTTP/1.1 exchange over a connection borrowed from a
+ * {@link PooledHttpTransport}. The connection is handed back as soon as the response has been
+ * read completely, or closed if the exchange was not completed.
+ *
+ * @author ksvraja
+ *
+ */
+class PooledHttpConnection implements TusConnection {
+    private static final int CONTINUE_TIMEOUT = 5000;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long MAX_DRAIN = 1024 * 1024;
+    private static final int DEFAULT_CHUNK_LENGTH = 64 * 1024;
+
+    private final PooledHttpTransport transport;
+    private final URL url;
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private String method = "GET";
+    private int connectTimeout;
+    private int readTimeout;
+    private boolean expectContinue;
+    private int chunkLength = -1;
+    private long fixedLength = -1;
+
+    private volatile PooledHttpTransport.PooledSocket socket;
+    private boolean socketReleased;
+    private OutputStream output;
+    private int responseCode = -1;
+    private IOException failure;
+    private final Map<String, String> responseHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    private boolean http10;
+
+    PooledHttpConnection(PooledHttpTransport transport, URL url) {
+        this.transport = transport;
+        this.url = url;
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException {
+        this.method = method;
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        Iterator<String[]> iterator = headers.iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next()[0].equalsIgnoreCase(key)) {
+                iterator.remove();
+            }
+        }
+        addRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        if(key.equalsIgnoreCase("Expect")) {
+            expectContinue = value.equalsIgnoreCase("100-continue");
+            return;
+        }
+        if(key.equalsIgnoreCase("Host") || key.equalsIgnoreCase("Content-Length")
+                || key.equalsIgnoreCase("Transfer-Encoding") || key.equalsIgnoreCase("Connection")) {
+            // Framing is up to this connection.
+            return;
+        }
+        headers.add(new String[]{key, value});
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(boolean followRedirects) {
+        // Redirects are never followed, see PooledHttpTransport.
+    }
+
+    @Override
+    public void setConnectTimeout(int timeout) {
+        this.connectTimeout = timeout;
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+        this.chunkLength = chunkLength > 0 ? chunkLength : DEFAULT_CHUNK_LENGTH;
+        this.fixedLength = -1;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength) {
+        this.fixedLength = contentLength;
+        this.chunkLength = -1;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if(socket != null || responseCode != -1) {
+            return;
+        }
+        acquire(false);
+        try {
+            writeHead(false);
+            socket.out.flush();
+        } catch(IOException e) {
+            if(!socket.reused) {
+                abort();
+                throw e;
+            }
+            // The server closed the idle connection before the request could be written.
+            abort();
+            acquire(true);
+            writeHead(false);
+            socket.out.flush();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(output != null) {
+            return output;
+        }
+        if(chunkLength < 0 && fixedLength < 0) {
+            throw new ProtocolException("set a streaming mode before writing a request body");
+        }
+        if(socket != null || responseCode != -1) {
+            throw new ProtocolException("request has already been sent");
+        }
+
+        acquire(false);
+        try {
+            sendHead();
+        } catch(IOException e) {
+            boolean stale = isStale(e, "PATCH");
+            if(responseCode == -1) {
+                abort();
+            }
+            if(!stale) {
+                throw e;
+            }
+            // Nothing of the body has been sent yet, so a PATCH, which the server only applies
+            // at its Upload-Offset, can go out again over a new connection if the server closed
+            // the kept-alive one. A POST is not sent again, since it may have created an upload.
+            acquire(true);
+            try {
+                sendHead();
+            } catch(IOException retryError) {
+                if(responseCode == -1) {
+                    abort();
+                }
+                throw retryError;
+            }
+        }
+
+        output = chunkLength > 0 ? new ChunkedBody(socket.out, chunkLength) : new FixedLengthBody(socket.out, fixedLength);
+        return output;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        if(failure != null) {
+            throw failure;
+        }
+        if(responseCode != -1 && socket == null) {
+            return responseCode;
+        }
+        if(socket == null) {
+            connect();
+        }
+
+        try {
+            if(output != null) {
+                output.close();
+            }
+            readResponse();
+        } catch(IOException e) {
+            boolean stale = output == null && isStale(e, "HEAD");
+            abort();
+            if(!stale) {
+                failure = e;
+                throw e;
+            }
+            // A HEAD request is sent again if the server closed the kept-alive connection before
+            // answering it. Other methods are not, since the server may have acted on them.
+            acquire(true);
+            try {
+                writeHead(false);
+                socket.out.flush();
+                readResponse();
+            } catch(IOException retryError) {
+                abort();
+                failure = retryError;
+                throw retryError;
+            }
+        }
+        return responseCode;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return responseHeaders.get(name);
+    }
+
+    @Override
+    public URL getURL() {
+        return url;
+    }
+
+    @Override
+    public void disconnect() {
+        // Once the response has been read, the connection is back in the pool already. While
+        // the request is in progress, e.g. when called from another thread to abort it, the
+        // socket is closed but left in place, so the sending thread fails with an IOException.
+        synchronized(this) {
+            if(socket != null && !socketReleased) {
+                transport.release(socket, false);
+                socketReleased = true;
+            }
+        }
+    }
+
+    /**
+     * @param retryableMethod The only method which may be sent again at this point
+     * @return true if the request failed since the server had closed the reused connection, not
+     * since it was disconnected from another thread, and can safely be sent again
+     */
+    private synchronized boolean isStale(IOException e, String retryableMethod) {
+        return socket != null && socket.reused && !socketReleased && responseCode == -1
+                && method.equals(retryableMethod) && (e instanceof EOFException || e instanceof SocketException);
+    }
+
+    /**
+     * Take a connection from the pool and apply the read timeout, since pooled sockets keep
+     * the timeout of their previous request.
+     */
+    private void acquire(boolean fresh) throws IOException {
+        socket = transport.acquire(url, connectTimeout, fresh);
+        try {
+            socket.socket.setSoTimeout(readTimeout);
+        } catch(SocketException e) {
+            // The socket is closed already, so the request fails when it is written.
+        }
+    }
+
+    private void sendHead() throws IOException {
+        writeHead(true);
+        socket.out.flush();
+        if(expectContinue && awaitContinue()) {
+            throw new ProtocolException("server answered " + responseCode + " before the request body was sent");
+        }
+    }
+
+    private void abort() {
+        releaseSocket(false);
+    }
+
+    private synchronized void releaseSocket(boolean reusable) {
+        if(socket != null && !socketReleased) {
+            transport.release(socket, reusable);
+        }
+        socket = null;
+        socketReleased = false;
+    }
+
+    private void writeHead(boolean hasBody) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        String path = url.getFile();
+        head.append(method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for(String[] header : headers) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if(hasBody) {
+            if(expectContinue) {
+                head.append("Expect: 100-continue\r\n");
+            }
+            if(chunkLength > 0) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                head.append("Content-Length: ").append(fixedLength).append("\r\n");
+            }
+        } else if(method.equals("POST") || method.equals("PATCH") || method.equals("PUT")) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        socket.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Wait for the server to accept the body with "100 Continue". Servers which do not
+     * support the expectation stay silent, so the body is sent after a timeout anyway.
+     *
+     * @return true if the server sent its final response instead
+     */
+    private boolean awaitContinue() throws IOException {
+        socket.socket.setSoTimeout(readTimeout > 0 ? Math.min(CONTINUE_TIMEOUT, readTimeout) : CONTINUE_TIMEOUT);
+        try {
+            readHead();
+        } catch(SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.socket.setSoTimeout(readTimeout);
+        }
+        if(responseCode == 100) {
+            responseCode = -1;
+            responseHeaders.clear();
+            return false;
+        }
+        if(responseCode > 100 && responseCode < 200) {
+            readResponse();
+        } else {
+            drainBody();
+        }
+        return true;
+    }
+
+    private void readResponse() throws IOException {
+        do {
+            readHead();
+        } while(responseCode >= 100 && responseCode < 200);
+        drainBody();
+    }
+
+    private void readHead() throws IOException {
+        responseHeaders.clear();
+        String statusLine = readLine(true);
+        if(statusLine == null) {
+            throw new EOFException("connection closed before the response was received");
+        }
+        if(!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+            throw new ProtocolException("invalid status line: " + statusLine);
+        }
+        http10 = statusLine.startsWith("HTTP/1.0");
+        try {
+            responseCode = Integer.parseInt(statusLine.substring(9, 12));
+        } catch(NumberFormatException e) {
+            throw new ProtocolException("invalid status line: " + statusLine);
+        }
+
+        String line;
+        while((line = readLine(false)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if(colon > 0) {
+                responseHeaders.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if(line == null) {
+            throw new EOFException("connection closed within the response headers");
+        }
+    }
+
+    /**
+     * Skip the response body, so the connection can carry the next exchange, and return the
+     * connection to the pool.
+     */
+    private void drainBody() throws IOException {
+        String connectionHeader = responseHeaders.get("Connection");
+        boolean keepAlive = http10
+                ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+
+        String transferEncoding = responseHeaders.get("Transfer-Encoding");
+        String contentLength = responseHeaders.get("Content-Length");
+        if(method.equals("HEAD") || responseCode == 204 || responseCode == 304) {
+            // No body.
+        } else if(transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            long drained = 0;
+            long size;
+            while((size = parseChunkSize(readLine(false))) > 0) {
+                drained += size;
+                if(drained > MAX_DRAIN) {
+                    keepAlive = false;
+                    break;
+                }
+                skip(size + 2);
+            }
+            if(keepAlive) {
+                String trailer;
+                while((trailer = readLine(false)) != null && !trailer.isEmpty()) {
+                    // Trailers are not used.
+                }
+            }
+        } else if(contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength);
+            } catch(NumberFormatException e) {
+                throw new ProtocolException("invalid Content-Length: " + contentLength);
+            }
+            if(length > MAX_DRAIN) {
+                keepAlive = false;
+            } else {
+                skip(length);
+            }
+        } else {
+            // The body ends when the server closes the connection.
+            keepAlive = false;
+        }
+
+        releaseSocket(keepAlive);
+    }
+
+    private long parseChunkSize(String line) throws IOException {
+        if(line == null) {
+            throw new EOFException("connection closed within the response body");
+        }
+        int extension = line.indexOf(';');
+        try {
+            return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+        } catch(NumberFormatException e) {
+            throw new ProtocolException("invalid chunk size: " + line);
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        InputStream in = socket.in;
+        while(count > 0) {
+            long skipped = in.skip(count);
+            if(skipped <= 0) {
+                if(in.read() == -1) {
+                    throw new EOFException("connection closed within the response body");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * @param first true for the status line, where a timeout before the first byte leaves the
+     * connection in a clean state
+     * @return The line without its line break, or null at the end of the stream
+     */
+    private String readLine(boolean first) throws IOException {
+        InputStream in = socket.in;
+        StringBuilder line = new StringBuilder();
+        while(true) {
+            int c;
+            try {
+                c = in.read();
+            } catch(SocketTimeoutException e) {
+                if(first && line.length() == 0) {
+                    throw e;
+                }
+                throw new ProtocolException("timed out within a response line");
+            }
+            if(c == -1) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if(c == '\n') {
+                int end = line.length();
+                if(end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            if(line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("response line too long");
+            }
+            line.append((char) c);
+        }
+    }
+
+    /**
+     * Body with a Content-Length. Closing it before all bytes were written fails, since the
+     * server would wait for the rest.
+     */
+    private class FixedLengthBody extends OutputStream {
+        private final OutputStream out;
+        private final long length;
+        private long written;
+        private boolean closed;
+
+        FixedLengthBody(OutputStream out, long length) {
+            this.out = out;
+            this.length = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) {
+                throw new IOException("request body has been closed");
+            }
+            if(written + len > length) {
+                throw new IOException("request body exceeds its Content-Length of " + length);
+            }
+            out.write(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            if(written != length) {
+                abort();
+                throw new IOException("request body closed after " + written + " of " + length + " bytes");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Body sent with chunked transfer coding. Writes are collected into chunks of the
+     * configured length, and a flush sends what has been collected so far.
+     */
+    private class ChunkedBody extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count;
+        private boolean closed;
+
+        ChunkedBody(OutputStream out, int chunkLength) {
+            this.out = out;
+            this.buffer = new byte[chunkLength];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(count == buffer.length) {
+                writeChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) {
+                throw new IOException("request body has been closed");
+            }
+            while(len > 0) {
+                if(count == 0 && len >= buffer.length) {
+                    // Large writes go out as they are, without copying.
+                    writeChunk(b, off, len);
+                    return;
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if(count == buffer.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            writeChunk();
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            closed = true;
+        }
+
+        private void writeChunk() throws IOException {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link TusTransport} speaking HTTP/1.1 over a pool of kept-alive sockets, so creation, HEAD
+ * and PATCH requests of all uploaders of a client go out over warm connections instead of
+ * paying for a TCP and TLS handshake each.
+ * <ul>
+ * <li>Connections are pooled per origin (scheme, host and port). At most
+ * {@link #setMaxConnectionsPerHost(int)} are open to one origin; further requests wait for
+ * one to be returned, as long as {@link #setAcquireTimeout(long, TimeUnit)} allows.</li>
+ * <li>A connection is returned to the pool as soon as its response has been read, and the
+ * most recently used one is handed out first.</li>
+ * <li>Connections idle for longer than {@link #setIdleTimeout(long, TimeUnit)} are closed by
+ * a background thread checking once a second. One idle for a while is probed before it is reused, so a connection
+ * the server has closed in the meantime is not handed out.</li>
+ * <li>A HEAD request, or a PATCH request before its body, which finds its reused connection
+ * closed by the server is sent once more over a new connection. Other requests fail, since the
+ * server may have acted on them, e.g. created an upload.</li>
+ * </ul>
+ * Redirects are never followed and proxies are not supported. Share one instance between the
+ * clients talking to the same servers, and close it once it is no longer used.
+ *
+ * @author ksvraja
+ *
+ */
+public class PooledHttpTransport implements TusTransport, Closeable {
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private volatile int maxConnectionsPerHost = 8;
+    private volatile long idleTimeout = TimeUnit.SECONDS.toNanos(30);
+    private volatile long validateAfterIdle = TimeUnit.SECONDS.toNanos(1);
+    private volatile long acquireTimeout;
+    private volatile SSLSocketFactory sslSocketFactory;
+    private ScheduledExecutorService evictor;
+    private boolean closed;
+
+    @Override
+    public TusConnection openConnection(URL url) throws IOException {
+        String protocol = url.getProtocol();
+        if(!protocol.equals("http") && !protocol.equals("https")) {
+            throw new IOException("unsupported protocol " + protocol);
+        }
+        return new PooledHttpConnection(this, url);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of connections open to one origin at the same time, whether in
+     * use or idle. It applies to origins connected to after the change. The default is 8.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if(maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public long getIdleTimeout(TimeUnit unit) {
+        return unit.convert(idleTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long an unused connection is kept open. Keep it below the server's keep-alive
+     * timeout. The default is 30 seconds.
+     */
+    public void setIdleTimeout(long duration, TimeUnit unit) {
+        this.idleTimeout = unit.toNanos(duration);
+    }
+
+    public long getValidateAfterIdle(TimeUnit unit) {
+        return unit.convert(validateAfterIdle, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long a connection has to be idle before it is probed for having been closed by
+     * the server when it is taken from the pool. The probe waits for a millisecond, so
+     * connections reused right away are not probed. The default is one second.
+     */
+    public void setValidateAfterIdle(long duration, TimeUnit unit) {
+        this.validateAfterIdle = unit.toNanos(duration);
+    }
+
+    public long getAcquireTimeout(TimeUnit unit) {
+        return unit.convert(acquireTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long a request waits for a connection when the maximum per origin is in use. A
+     * connection is held for a whole request, which may be a long PATCH, so keep it well above
+     * the time an upload request takes. If it expires, the request fails with a
+     * {@link TusPoolTimeoutException}. The default is 0, which waits as long as it takes.
+     */
+    public void setAcquireTimeout(long duration, TimeUnit unit) {
+        this.acquireTimeout = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets the factory for TLS connections. By default the JVM's default factory is used. The
+     * host name is verified against the server's certificate in any case.
+     */
+    public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * @return Number of connections opened so far, which stays low if connections are reused
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return Number of connections currently idle in the pool
+     */
+    public int getIdleConnections() {
+        int count = 0;
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                count += route.idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close all idle connections and stop pooling. Connections in use are closed once their
+     * exchange is done.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            closed = true;
+            if(evictor != null) {
+                evictor.shutdownNow();
+            }
+        }
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                for(PooledSocket socket : route.idle) {
+                    socket.close();
+                }
+                route.idle.clear();
+            }
+        }
+    }
+
+    /**
+     * Take a connection to the URL's origin, waiting if the maximum is in use, for at most the
+     * acquire timeout if one is set.
+     *
+     * @param fresh true to open a new connection instead of reusing an idle one
+     */
+    PooledSocket acquire(URL url, int connectTimeout, boolean fresh) throws IOException {
+        Route route = route(url);
+        long timeout = acquireTimeout;
+        try {
+            if(timeout > 0) {
+                if(!route.permits.tryAcquire(timeout, TimeUnit.NANOSECONDS)) {
+                    throw new TusPoolTimeoutException(route.key, TimeUnit.NANOSECONDS.toMillis(timeout));
+                }
+            } else {
+                route.permits.acquire();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection to " + route.key);
+        }
+
+        try {
+            if(!fresh) {
+                PooledSocket socket;
+                while((socket = route.pollIdle()) != null) {
+                    if(isReusable(socket)) {
+                        socket.reused = true;
+                        return socket;
+                    }
+                    socket.close();
+                }
+            }
+            return open(route, url, connectTimeout);
+        } catch(IOException e) {
+            route.permits.release();
+            throw e;
+        } catch(RuntimeException e) {
+            route.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a connection taken with {@link #acquire(URL, int, boolean)}.
+     *
+     * @param reusable true if the exchange completed and the connection can carry another one
+     */
+    void release(PooledSocket socket, boolean reusable) {
+        Route route = socket.route;
+        boolean pooled = false;
+        if(reusable) {
+            synchronized(this) {
+                if(!closed) {
+                    startEvictor();
+                    socket.idleSince = System.nanoTime();
+                    synchronized(route) {
+                        route.idle.addFirst(socket);
+                    }
+                    pooled = true;
+                }
+            }
+        }
+        if(!pooled) {
+            socket.close();
+        }
+        route.permits.release();
+    }
+
+    private Route route(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        Route route = routes.get(key);
+        if(route == null) {
+            Route created = new Route(key, maxConnectionsPerHost);
+            route = routes.putIfAbsent(key, created);
+            if(route == null) {
+                route = created;
+            }
+        }
+        return route;
+    }
+
+    private PooledSocket open(Route route, URL url, int connectTimeout) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if(url.getProtocol().equals("https")) {
+                SSLSocketFactory factory = sslSocketFactory;
+                if(factory == null) {
+                    factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                }
+                SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+                ssl.setSoTimeout(connectTimeout);
+                ssl.startHandshake();
+                ssl.setSoTimeout(0);
+                socket = ssl;
+            }
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        connectionsOpened.incrementAndGet();
+        return new PooledSocket(route, socket);
+    }
+
+    /**
+     * A connection is reusable unless it has been idle for too long or the server has closed
+     * it. The latter shows as end of stream, which the probe reads without blocking for long.
+     */
+    private boolean isReusable(PooledSocket socket) {
+        long idle = System.nanoTime() - socket.idleSince;
+        if(socket.socket.isClosed() || idle >= idleTimeout) {
+            return false;
+        }
+        if(idle < validateAfterIdle) {
+            return true;
+        }
+        try {
+            socket.socket.setSoTimeout(1);
+            try {
+                // Neither end of stream nor data is expected from an idle connection.
+                socket.in.read();
+                return false;
+            } catch(SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.socket.setSoTimeout(0);
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    private void startEvictor() {
+        if(evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new TusThreadFactory("tus-pool-evictor"));
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Close the connections which have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for(Route route : routes.values()) {
+            synchronized(route) {
+                Iterator<PooledSocket> sockets = route.idle.iterator();
+                while(sockets.hasNext()) {
+                    PooledSocket socket = sockets.next();
+                    if(now - socket.idleSince >= idleTimeout) {
+                        sockets.remove();
+                        socket.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Route {
+        final String key;
+        final Semaphore permits;
+        final Deque<PooledSocket> idle = new ArrayDeque<PooledSocket>();
+
+        Route(String key, int maxConnections) {
+            this.key = key;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        synchronized PooledSocket pollIdle() {
+            return idle.pollFirst();
+        }
+    }
+
+    /**
+     * An open connection with its buffered streams, which outlive a single exchange.
+     */
+    static class PooledSocket {
+        final Route route;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+        boolean reused;
+
+        PooledSocket(Route route, Socket socket) throws IOException {
+            this.route = route;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch(IOException e) {
+                // Nothing left to release.
+            }
+        }
+    }
+}
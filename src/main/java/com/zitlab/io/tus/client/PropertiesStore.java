@@ -36,9 +36,6 @@ public class PropertiesStore implements TusURLStore {
 	 */
 	@Override
 	public void put(String fingerprint, String url) {
-
-		System.out.println("Fingerprint:" + fingerprint);
-		System.out.println("url:" + url);
 		props.setProperty(fingerprint, url);
 	}
 
@@ -49,7 +46,6 @@ public class PropertiesStore implements TusURLStore {
 	public String get(String fingerprint) {
 		if(null == fingerprint)
 			return null;
-		System.out.println(fingerprint);
 		return props.getProperty(fingerprint);
 	}
 
@@ -0,0 +1,116 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+/**
+ * Sizing state of a single {@link TusUploader}, see {@link TusAdaptiveSizing}.
+ *
+ * @author ksvraja
+ *
+ */
+class TusAdaptiveSizer {
+    private static final double SMOOTHING = 0.2;
+
+    private final TusAdaptiveSizing sizing;
+    private int chunkSize;
+    private int requestPayloadSize;
+    private boolean slowStart = true;
+    private double bytesPerSecond;
+
+    TusAdaptiveSizer(TusAdaptiveSizing sizing) {
+        this.sizing = sizing;
+        this.chunkSize = sizing.getChunkSize();
+        this.requestPayloadSize = sizing.getRequestPayloadSize();
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    int getRequestPayloadSize() {
+        return requestPayloadSize;
+    }
+
+    /**
+     * Account for a chunk which has been written and flushed.
+     *
+     * @param bytes Number of bytes in the chunk
+     * @param nanos Time it took to write the chunk
+     */
+    void onChunkWritten(int bytes, long nanos) {
+        if(bytes <= 0 || nanos <= 0) {
+            return;
+        }
+
+        double sample = bytes * 1e9 / nanos;
+        if(bytesPerSecond == 0) {
+            bytesPerSecond = sample;
+        } else if(sample < bytesPerSecond * sizing.getDropRatio()) {
+            // The link got a lot slower: send less per chunk and per request from now on.
+            bytesPerSecond = sample;
+            shrink();
+            return;
+        } else {
+            bytesPerSecond += SMOOTHING * (sample - bytesPerSecond);
+        }
+
+        long target = (long) (bytesPerSecond * sizing.getTargetChunkMillis() / 1000);
+        long next;
+        if(slowStart) {
+            next = (long) chunkSize * 2;
+            if(next >= target) {
+                slowStart = false;
+                next = Math.max(chunkSize, target);
+            }
+        } else if(target > chunkSize) {
+            // Grow carefully once slow start is over.
+            next = Math.min(target, chunkSize + chunkSize / 4);
+        } else if(target < chunkSize / 2) {
+            next = chunkSize / 2;
+        } else {
+            next = chunkSize;
+        }
+
+        chunkSize = TusAdaptiveSizing.clamp(next, sizing.getMinChunkSize(), sizing.getMaxChunkSize());
+        sizing.setChunkSize(chunkSize);
+    }
+
+    /**
+     * Account for a request which has been accepted by the server.
+     */
+    void onRequestSucceeded() {
+        requestPayloadSize = TusAdaptiveSizing.clamp((long) requestPayloadSize * 2,
+                sizing.getMinRequestPayloadSize(), sizing.getMaxRequestPayloadSize());
+        sizing.setRequestPayloadSize(requestPayloadSize);
+    }
+
+    /**
+     * Account for a request which failed, either while writing or by its response.
+     */
+    void onFailure() {
+        shrink();
+    }
+
+    private void shrink() {
+        slowStart = false;
+        chunkSize = TusAdaptiveSizing.clamp(chunkSize / 2, sizing.getMinChunkSize(), sizing.getMaxChunkSize());
+        requestPayloadSize = TusAdaptiveSizing.clamp(requestPayloadSize / 2,
+                sizing.getMinRequestPayloadSize(), sizing.getMaxRequestPayloadSize());
+        sizing.setChunkSize(chunkSize);
+        sizing.setRequestPayloadSize(requestPayloadSize);
+    }
+}
@@ -0,0 +1,137 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+/**
+ * Bounds and shared state for adaptive chunk and request payload sizes. When set on a
+ * {@link TusClient}, every {@link TusUploader} of the client measures the time it takes to
+ * write each chunk and adjusts its sizes within these bounds:
+ * <ul>
+ * <li>The chunk size starts small and doubles after every chunk (like TCP slow start) until a
+ * chunk takes about {@link #getTargetChunkMillis()} to send, then follows the measured
+ * throughput.</li>
+ * <li>The request payload size doubles after every successful request, so fast links need only
+ * few requests.</li>
+ * <li>When throughput drops sharply or a request fails, both sizes are cut, so fewer bytes have
+ * to be sent again on flaky links.</li>
+ * </ul>
+ * The last sizes reached by any uploader are remembered here and used as starting point by the
+ * next uploader, including the one created for a retry.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusAdaptiveSizing {
+    private int minChunkSize = 64 * 1024;
+    private int maxChunkSize = 16 * 1024 * 1024;
+    private int minRequestPayloadSize = 1024 * 1024;
+    private int maxRequestPayloadSize = 1024 * 1024 * 1024;
+    private long targetChunkMillis = 1000;
+    private double dropRatio = 0.5;
+
+    private volatile int chunkSize = 256 * 1024;
+    private volatile int requestPayloadSize = 8 * 1024 * 1024;
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public void setMinChunkSize(int minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public int getMinRequestPayloadSize() {
+        return minRequestPayloadSize;
+    }
+
+    public void setMinRequestPayloadSize(int minRequestPayloadSize) {
+        this.minRequestPayloadSize = minRequestPayloadSize;
+    }
+
+    public int getMaxRequestPayloadSize() {
+        return maxRequestPayloadSize;
+    }
+
+    public void setMaxRequestPayloadSize(int maxRequestPayloadSize) {
+        this.maxRequestPayloadSize = maxRequestPayloadSize;
+    }
+
+    public long getTargetChunkMillis() {
+        return targetChunkMillis;
+    }
+
+    /**
+     * Sets how long sending a single chunk should take once the link's throughput is known.
+     * Longer chunks have less overhead, shorter ones report progress more often. The default is
+     * one second.
+     */
+    public void setTargetChunkMillis(long targetChunkMillis) {
+        this.targetChunkMillis = targetChunkMillis;
+    }
+
+    public double getDropRatio() {
+        return dropRatio;
+    }
+
+    /**
+     * Sets the fraction of the average throughput below which a chunk counts as a throughput
+     * drop and the sizes are cut. The default is 0.5.
+     */
+    public void setDropRatio(double dropRatio) {
+        this.dropRatio = dropRatio;
+    }
+
+    /**
+     * @return The chunk size the next uploader starts with
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the chunk size the next uploader starts with.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = clamp(chunkSize, minChunkSize, maxChunkSize);
+    }
+
+    /**
+     * @return The request payload size the next uploader starts with
+     */
+    public int getRequestPayloadSize() {
+        return requestPayloadSize;
+    }
+
+    /**
+     * Sets the request payload size the next uploader starts with.
+     */
+    public void setRequestPayloadSize(int requestPayloadSize) {
+        this.requestPayloadSize = clamp(requestPayloadSize, minRequestPayloadSize, maxRequestPayloadSize);
+    }
+
+    static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
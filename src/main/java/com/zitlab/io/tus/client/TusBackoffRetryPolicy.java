@@ -0,0 +1,197 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link TusRetryPolicy} with exponential backoff and full jitter: the delay before retry n is
+ * a random value between 0 and min(maxDelay, baseDelay * 2^n), so uploads which failed at the
+ * same moment do not retry in step.
+ * <ul>
+ * <li>A Retry-After header sent by the server is honoured as minimum delay, even if it is
+ * longer than the maximum delay.</li>
+ * <li>Failures are classified with {@link TusFailure}: a connection reset in the middle of a
+ * request is retried after the base delay at most, since the server is likely fine, while a
+ * failure to connect backs off fully. Only failures to connect, timeouts and retryable server
+ * statuses count towards the circuit breaker; a rejection of one upload, e.g. a 404 for a stale
+ * upload URL or a checksum mismatch, or an aborted request does not.</li>
+ * <li>An optional {@link TusRetryBudget} shared by all uploads limits the overall retry rate.</li>
+ * <li>A circuit breaker per server stops all attempts for a while after a number of
+ * consecutive failures.</li>
+ * </ul>
+ *
+ * @author ksvraja
+ *
+ */
+public class TusBackoffRetryPolicy implements TusRetryPolicy {
+    private int maxAttempts = 5;
+    private long baseDelay = 500;
+    private long maxDelay = 30000;
+    private TusRetryBudget budget;
+    private int breakerThreshold = 5;
+    private long breakerOpenMillis = 10000;
+
+    private final ConcurrentMap<String, TusCircuitBreaker> breakers = new ConcurrentHashMap<String, TusCircuitBreaker>();
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the number of retries after the first attempt. The default is 5.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public TusRetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Sets the budget every retry is taken from. Share one budget between the policies of all
+     * uploads to bound their total retry rate. The default is no budget.
+     */
+    public void setBudget(TusRetryBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Configure the circuit breakers.
+     *
+     * @param threshold Number of consecutive failures against a server after which it opens,
+     * 0 to disable the breakers
+     * @param openMillis Time attempts are rejected before a trial attempt is let through
+     */
+    public void setCircuitBreaker(int threshold, long openMillis) {
+        this.breakerThreshold = threshold;
+        this.breakerOpenMillis = openMillis;
+        breakers.clear();
+    }
+
+    @Override
+    public void beforeAttempt(URL baseURL) throws TusCircuitOpenException {
+        TusCircuitBreaker breaker = breaker(baseURL);
+        if(breaker != null) {
+            breaker.beforeAttempt();
+        }
+    }
+
+    @Override
+    public long onFailure(URL baseURL, int attempt, Exception error) {
+        TusFailure failure = TusFailure.classify(error);
+        TusCircuitBreaker breaker = breaker(baseURL);
+        if(breaker != null) {
+            switch(failure) {
+            case CONNECT:
+            case TIMEOUT:
+            case SERVER:
+                breaker.onFailure();
+                break;
+            case CIRCUIT_OPEN:
+                // The attempt was never let through.
+                break;
+            default:
+                // A reset, an aborted request, a wait for a pooled connection or a rejection of
+                // this upload says nothing about the server's health, but a trial attempt must still end.
+                breaker.onAbandoned();
+            }
+        }
+
+        if(!failure.isRetryable() || attempt >= maxAttempts) {
+            return -1;
+        }
+
+        if(failure == TusFailure.CIRCUIT_OPEN) {
+            // Nothing was sent, so no budget is used. Wait for the breaker plus some jitter so
+            // the waiting uploads do not all hit the trial slot at once.
+            long remaining = ((TusCircuitOpenException) error).getRemainingMillis();
+            return remaining + ThreadLocalRandom.current().nextLong(baseDelay + 1);
+        }
+        if(failure == TusFailure.POOL_TIMEOUT) {
+            // Nothing was sent either: the other uploads hold the connections.
+            return ThreadLocalRandom.current().nextLong(baseDelay + 1);
+        }
+
+        if(budget != null && !budget.tryAcquire()) {
+            return -1;
+        }
+
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        if(failure == TusFailure.RESET) {
+            ceiling = Math.min(ceiling, baseDelay);
+        }
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+
+        if(error instanceof TusProtocolException) {
+            long retryAfter = ((TusProtocolException) error).getRetryAfterMillis();
+            if(retryAfter > delay) {
+                delay = retryAfter;
+            }
+        }
+        return delay;
+    }
+
+    @Override
+    public void onSuccess(URL baseURL) {
+        TusCircuitBreaker breaker = breaker(baseURL);
+        if(breaker != null) {
+            breaker.onSuccess();
+        }
+    }
+
+    @Override
+    public void onAbandoned(URL baseURL) {
+        TusCircuitBreaker breaker = breaker(baseURL);
+        if(breaker != null) {
+            breaker.onAbandoned();
+        }
+    }
+
+    private TusCircuitBreaker breaker(URL baseURL) {
+        if(breakerThreshold <= 0 || baseURL == null) {
+            return null;
+        }
+        String target = baseURL.getProtocol() + "://" + baseURL.getAuthority();
+        TusCircuitBreaker breaker = breakers.get(target);
+        if(breaker == null) {
+            breakers.putIfAbsent(target, new TusCircuitBreaker(target, breakerThreshold, breakerOpenMillis));
+            breaker = breakers.get(target);
+        }
+        return breaker;
+    }
+}
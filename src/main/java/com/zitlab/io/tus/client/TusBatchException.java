@@ -0,0 +1,73 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link TusClient#createUploads(List, int)} if some of the uploads could not be
+ * created. The uploads which were created are returned with it, since their URLs are already
+ * stored and the caller has to finish or close them.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusBatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<TusUploader> uploaders;
+    private final transient List<Throwable> failures;
+
+    /**
+     * @param uploaders Uploader of every upload in the batch's order, null where it failed
+     * @param failures Failure of every upload in the batch's order, null where it was created
+     * @param cause The first failure
+     */
+    public TusBatchException(List<TusUploader> uploaders, List<Throwable> failures, Throwable cause) {
+        super(countFailures(failures) + " of " + failures.size() + " uploads could not be created", cause);
+        this.uploaders = Collections.unmodifiableList(uploaders);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return An uploader for every upload, in the order they were passed, or null for the
+     * uploads which failed. Call {@link TusUploader#finish()} on each as usual.
+     */
+    public List<TusUploader> getUploaders() {
+        return uploaders;
+    }
+
+    /**
+     * @return The failure of every upload, in the order they were passed, or null for the uploads
+     * which were created
+     */
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+
+    private static int countFailures(List<Throwable> failures) {
+        int count = 0;
+        for(Throwable failure : failures) {
+            if(failure != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
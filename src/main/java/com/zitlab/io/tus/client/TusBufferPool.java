@@ -0,0 +1,113 @@
+/**
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable direct {@link ByteBuffer}s shared by uploaders. Buffers are grouped in
+ * power-of-two size classes and at most a fixed number of idle buffers is kept per class, so
+ * the pool never holds more memory than the peak number of concurrently open requests needs.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusBufferPool {
+    private static final int MIN_CAPACITY = 4096;
+    private static final TusBufferPool defaultPool = new TusBufferPool(64);
+
+    private final int maxIdlePerSize;
+    private final ConcurrentMap<Integer, Queue<ByteBuffer>> idle = new ConcurrentHashMap<Integer, Queue<ByteBuffer>>();
+    private final ConcurrentMap<Integer, AtomicInteger> idleCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * @param maxIdlePerSize Maximum number of released buffers kept per size class
+     */
+    public TusBufferPool(int maxIdlePerSize) {
+        this.maxIdlePerSize = maxIdlePerSize;
+    }
+
+    public static TusBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Take a buffer with room for at least size bytes. The returned buffer is cleared and its
+     * limit is set to size.
+     *
+     * @param size Number of bytes needed
+     * @return A direct buffer which should be handed back using {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        int capacity = capacityFor(size);
+        Queue<ByteBuffer> queue = idle.get(capacity);
+        ByteBuffer buffer = queue == null ? null : queue.poll();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            idleCounts.get(capacity).decrementAndGet();
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer obtained from {@link #acquire(int)} back to the pool. The buffer must not be
+     * used by the caller afterwards.
+     *
+     * @param buffer Buffer to return, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if(capacity != capacityFor(capacity)) {
+            // Not one of ours.
+            return;
+        }
+
+        AtomicInteger count = idleCounts.get(capacity);
+        if(count == null) {
+            idleCounts.putIfAbsent(capacity, new AtomicInteger());
+            idle.putIfAbsent(capacity, new ConcurrentLinkedQueue<ByteBuffer>());
+            count = idleCounts.get(capacity);
+        }
+
+        if(count.incrementAndGet() > maxIdlePerSize) {
+            count.decrementAndGet();
+            return;
+        }
+        idle.get(capacity).offer(buffer);
+    }
+
+    private static int capacityFor(int size) {
+        if(size <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+}
@@ -0,0 +1,70 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Uploads whatever an {@link InputStream} or a {@link ReadableByteChannel} delivers, e.g. the
+ * output of a database dump, without staging it on disk first.
+ *
+ * @see TusStreamSource
+ * @author ksvraja
+ *
+ */
+public class TusChannelSource extends TusStreamSource {
+    private final ReadableByteChannel source;
+
+    /**
+     * @param source Channel to read from, closed when the stream is closed
+     * @param fingerprint Key for the {@link TusURLStore}, or null for a random one
+     * @param length Number of bytes the channel will deliver, or -1 if unknown
+     * @param replayCapacity Number of bytes kept for replaying failed requests
+     */
+    public TusChannelSource(ReadableByteChannel source, String fingerprint, long length, int replayCapacity) {
+        super(fingerprint, length, replayCapacity);
+        this.source = source;
+    }
+
+    /**
+     * Upload a channel of unknown length with the default replay buffer.
+     */
+    public TusChannelSource(ReadableByteChannel source, String fingerprint) {
+        this(source, fingerprint, -1, DEFAULT_REPLAY_CAPACITY);
+    }
+
+    /**
+     * Upload an input stream of unknown length with the default replay buffer.
+     */
+    public TusChannelSource(InputStream source, String fingerprint) {
+        this(Channels.newChannel(source), fingerprint);
+    }
+
+    @Override
+    protected int readSource(ByteBuffer target) throws IOException {
+        return source.read(target);
+    }
+
+    @Override
+    protected void closeSource() throws IOException {
+        source.close();
+    }
+}
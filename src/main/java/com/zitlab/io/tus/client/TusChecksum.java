@@ -0,0 +1,191 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum or digest under the algorithm names of the tus Checksum extension, e.g. "crc32c",
+ * "sha1" or "md5". Data is taken from {@link ByteBuffer}s, so direct chunk buffers are hashed
+ * in place. CRC32C uses java.util.zip.CRC32C, which the JVM implements with CPU instructions,
+ * when running on Java 9 or later.
+ *
+ * @author ksvraja
+ *
+ */
+public abstract class TusChecksum {
+    public static final String CRC32C = "crc32c";
+    public static final String CRC32 = "crc32";
+    public static final String SHA1 = "sha1";
+    public static final String SHA256 = "sha256";
+    public static final String SHA512 = "sha512";
+    public static final String MD5 = "md5";
+
+    private static final MethodHandle newCrc32c;
+    private static final MethodHandle updateCrc32c;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch(ReflectiveOperationException e) {
+            // Java 8: CRC32C is not available.
+        }
+        newCrc32c = constructor;
+        updateCrc32c = update;
+    }
+
+    private final String algorithm;
+
+    private TusChecksum(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param algorithm Name of the algorithm as used by the tus Checksum extension
+     * @throws NoSuchAlgorithmException Thrown if the algorithm is not available in this JVM
+     */
+    public static TusChecksum getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if(CRC32C.equals(algorithm)) {
+            if(newCrc32c == null) {
+                throw new NoSuchAlgorithmException("crc32c needs Java 9 or later");
+            }
+            try {
+                return new ChecksumAdapter(algorithm, (Checksum) newCrc32c.invokeExact(), true);
+            } catch(Throwable e) {
+                throw new NoSuchAlgorithmException(e);
+            }
+        }
+        if(CRC32.equals(algorithm)) {
+            return new ChecksumAdapter(algorithm, new CRC32(), false);
+        }
+        if(SHA1.equals(algorithm)) {
+            return new DigestAdapter(algorithm, MessageDigest.getInstance("SHA-1"));
+        }
+        if(SHA256.equals(algorithm)) {
+            return new DigestAdapter(algorithm, MessageDigest.getInstance("SHA-256"));
+        }
+        if(SHA512.equals(algorithm)) {
+            return new DigestAdapter(algorithm, MessageDigest.getInstance("SHA-512"));
+        }
+        if(MD5.equals(algorithm)) {
+            return new DigestAdapter(algorithm, MessageDigest.getInstance("MD5"));
+        }
+        throw new NoSuchAlgorithmException("unknown checksum algorithm " + algorithm);
+    }
+
+    /**
+     * @return true if {@link #getInstance(String)} supports the algorithm in this JVM
+     */
+    public static boolean isSupported(String algorithm) {
+        try {
+            getInstance(algorithm);
+            return true;
+        } catch(NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Add the remaining bytes of data. The buffer's position is moved to its limit.
+     */
+    public abstract void update(ByteBuffer data);
+
+    /**
+     * @return The checksum of all data added since the last reset, after which the checksum is
+     * reset
+     */
+    public abstract byte[] digest();
+
+    /**
+     * @return Value of the Upload-Checksum header for all data added since the last reset,
+     * after which the checksum is reset
+     */
+    public String toHeaderValue() {
+        return algorithm + " " + Base64.getEncoder().encodeToString(digest());
+    }
+
+    private static class ChecksumAdapter extends TusChecksum {
+        private final Checksum checksum;
+        private final boolean crc32c;
+
+        ChecksumAdapter(String algorithm, Checksum checksum, boolean crc32c) {
+            super(algorithm);
+            this.checksum = checksum;
+            this.crc32c = crc32c;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            if(!crc32c) {
+                ((CRC32) checksum).update(data);
+                return;
+            }
+            try {
+                updateCrc32c.invokeExact(checksum, data);
+            } catch(RuntimeException e) {
+                throw e;
+            } catch(Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public byte[] digest() {
+            long value = checksum.getValue();
+            checksum.reset();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+
+    private static class DigestAdapter extends TusChecksum {
+        private final MessageDigest digest;
+
+        DigestAdapter(String algorithm, MessageDigest digest) {
+            super(algorithm);
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            digest.update(data);
+        }
+
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+/**
+ * Circuit breaker for one server. After a number of consecutive failures it opens and rejects
+ * attempts for a while; then it lets a single trial attempt through and closes again if that
+ * attempt succeeds.
+ *
+ * @author ksvraja
+ *
+ */
+class TusCircuitBreaker {
+    private final String target;
+    private final int failureThreshold;
+    private final long openMillis;
+    private int consecutiveFailures;
+    private long openUntil;
+    // Thread making the trial attempt, which reports its outcome.
+    private Thread trial;
+
+    TusCircuitBreaker(String target, int failureThreshold, long openMillis) {
+        this.target = target;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    synchronized void beforeAttempt() throws TusCircuitOpenException {
+        if(consecutiveFailures < failureThreshold) {
+            return;
+        }
+
+        long remaining = openUntil - System.currentTimeMillis();
+        if(remaining > 0 || trial != null) {
+            throw new TusCircuitOpenException(target, Math.max(remaining, 0));
+        }
+        // Half open: this attempt is the trial.
+        trial = Thread.currentThread();
+    }
+
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trial = null;
+    }
+
+    /**
+     * An attempt ended without an outcome, e.g. it was cancelled or its connection was reset. If
+     * it was the trial, the next attempt becomes the trial.
+     */
+    synchronized void onAbandoned() {
+        endTrial();
+    }
+
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        endTrial();
+        if(consecutiveFailures >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    /**
+     * Free the trial slot if the calling thread holds it. Attempts let through before the breaker
+     * opened may still end while a trial runs, and must not let a second trial through.
+     */
+    private void endTrial() {
+        if(trial == Thread.currentThread()) {
+            trial = null;
+        }
+    }
+}
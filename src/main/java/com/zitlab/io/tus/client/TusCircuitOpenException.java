@@ -0,0 +1,43 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker for a server is open.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusCircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long remainingMillis;
+
+    public TusCircuitOpenException(String target, long remainingMillis) {
+        super("circuit breaker for " + target + " is open for another " + remainingMillis + "ms");
+        this.remainingMillis = remainingMillis;
+    }
+
+    /**
+     * @return Time until the breaker lets a trial request through
+     */
+    public long getRemainingMillis() {
+        return remainingMillis;
+    }
+}
@@ -17,21 +17,64 @@
 package com.zitlab.io.tus.client;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Consumer;
 
 
 public class TusClient {
 	
 	public final static String TUS_VERSION = "1.0.0";
+	/** Prefix of the {@link TusURLStore} keys the content digests are kept under. */
+	public final static String DIGEST_PREFIX = "digest:";
 	
 	private URL baseURL;
 	private boolean resumingEnabled;
     private TusURLStore urlStore;
     private Map<String, String> headers;
+    private String[] preparedHeaders = {"Tus-Resumable", TUS_VERSION};
     private int connectTimeout = 5000;
+    private int readTimeout;
+    private int writeTimeout;
+    private volatile long stallMinBytesPerSecond;
+    private volatile int stallSeconds;
+    private final TusStallWatchdog stallWatchdog = new TusStallWatchdog(this);
+    private TusBufferPool bufferPool = TusBufferPool.getDefault();
+    private TusTransport transport = new HttpURLConnectionTransport();
+    private TusAdaptiveSizing adaptiveSizing;
+    private TusCompletionIndex completionIndex;
+    private int readAheadChunks;
+    private Executor readAheadExecutor = TusReadAhead.getDefaultExecutor();
+    private TusMetrics metrics = TusMetrics.NONE;
+    private TusCompressor compressor;
+    private String checksumAlgorithm;
+    private String contentDigestAlgorithm;
+    private volatile Collection<String> serverChecksumAlgorithms;
+    private volatile Collection<String> serverExtensions;
+    private TusRateLimiter rateLimiter;
+    private int creationWithUploadSize = 256 * 1024;
+    private volatile long hostRateLimit;
+    private final ConcurrentMap<String, TusRateLimiter> hostRateLimiters = new ConcurrentHashMap<String, TusRateLimiter>();
     
     
     
@@ -60,15 +103,457 @@ public class TusClient {
 	public void setConnectTimeout(int connectTimeout) {
 		this.connectTimeout = connectTimeout;
 	}
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	/**
+	 * Sets how long every request waits for response data, e.g. for the response to a PATCH
+	 * request once its body is sent, before it fails with a {@link java.net.SocketTimeoutException}.
+	 * An uploader continues from the server's offset after such a timeout. The default, 0,
+	 * waits forever.
+	 *
+	 * @param readTimeout Timeout in milliseconds
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+	/**
+	 * Sets how long a single write of a PATCH request's body may block, e.g. because the server
+	 * stopped reading it, before the request is disconnected as stalled. The uploader then
+	 * continues from the server's offset. The default, 0, lets writes block forever.
+	 *
+	 * @param writeTimeout Timeout in milliseconds
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+	public long getStallMinBytesPerSecond() {
+		return stallMinBytesPerSecond;
+	}
+	public int getStallSeconds() {
+		return stallSeconds;
+	}
+	/**
+	 * Flags a PATCH request as stalled if it sends less than the given number of bytes per second
+	 * over the given number of seconds. The request is then disconnected, the uploader continues
+	 * from the server's offset and {@link TusMetrics#requestStalled()} is reported. Only the time
+	 * spent writing the request body counts, so waiting for a rate limit, for the source, e.g.
+	 * a growing file, or for the caller of the uploader does not make a request stalled.
+	 * Disabled by default.
+	 *
+	 * @param minBytesPerSecond Lowest acceptable throughput, or 0 to disable the detection
+	 * @param seconds Length of the interval the throughput is measured over
+	 */
+	public void setStallDetection(long minBytesPerSecond, int seconds) {
+		if(minBytesPerSecond > 0 && seconds < 1) {
+			throw new IllegalArgumentException("stall interval must be at least 1 second");
+		}
+		this.stallSeconds = seconds;
+		this.stallMinBytesPerSecond = minBytesPerSecond;
+	}
+	TusStallWatchdog getStallWatchdog() {
+		return stallWatchdog;
+	}
+	public TusBufferPool getBufferPool() {
+		return bufferPool;
+	}
+	/**
+	 * Sets the pool the chunk buffers of all uploaders of this client are taken from. By default
+	 * the process-wide {@link TusBufferPool#getDefault()} is used.
+	 */
+	public void setBufferPool(TusBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	public TusTransport getTransport() {
+		return transport;
+	}
+	/**
+	 * Sets the transport all requests of this client, including the PATCH requests of its
+	 * uploaders, are issued with. The default is {@link HttpURLConnectionTransport}; use a
+	 * {@link PooledHttpTransport} to send all requests over a pool of kept-alive connections.
+	 */
+	public void setTransport(TusTransport transport) {
+		this.transport = transport;
+	}
+	public TusAdaptiveSizing getAdaptiveSizing() {
+		return adaptiveSizing;
+	}
+	/**
+	 * Enables adaptive chunk and request payload sizes for all uploaders of this client. Pass
+	 * null, the default, to use the fixed sizes of {@link TusUploader}.
+	 */
+	public void setAdaptiveSizing(TusAdaptiveSizing adaptiveSizing) {
+		this.adaptiveSizing = adaptiveSizing;
+	}
+	public TusCompletionIndex getCompletionIndex() {
+		return completionIndex;
+	}
+	/**
+	 * Sets the index finished uploads are recorded in. If set, {@link #resumeOrCreateUpload(TusFileStream)}
+	 * does not send any request for content which has already been uploaded completely. Only
+	 * uploads with a content fingerprint are looked up and recorded, see
+	 * {@link TusFileStream#hasContentFingerprint()}.
+	 */
+	public void setCompletionIndex(TusCompletionIndex completionIndex) {
+		this.completionIndex = completionIndex;
+	}
+	public int getReadAheadChunks() {
+		return readAheadChunks;
+	}
+	/**
+	 * Enables reading ahead: every uploader reads up to this many chunks from its file on a
+	 * background thread while it sends the current one, so disk and network are busy at the
+	 * same time. Each uploader then holds up to readAheadChunks + 1 chunk buffers. The default,
+	 * 0, reads every chunk on the uploading thread right before sending it.
+	 */
+	public void setReadAheadChunks(int readAheadChunks) {
+		this.readAheadChunks = readAheadChunks;
+	}
+	public Executor getReadAheadExecutor() {
+		return readAheadExecutor;
+	}
+	/**
+	 * Sets the executor the read-ahead of every uploader runs on. It needs one thread per
+	 * uploader which is sending. By default a shared pool of daemon threads is used.
+	 */
+	public void setReadAheadExecutor(Executor readAheadExecutor) {
+		this.readAheadExecutor = readAheadExecutor;
+	}
+	public TusMetrics getMetrics() {
+		return metrics;
+	}
+	/**
+	 * Sets where the client and its uploaders report request latencies, throughput and
+	 * retries to, e.g. a {@link TusMetricsRecorder}. By default nothing is recorded.
+	 */
+	public void setMetrics(TusMetrics metrics) {
+		this.metrics = metrics == null ? TusMetrics.NONE : metrics;
+	}
+	public TusCompressor getCompressor() {
+		return compressor;
+	}
+	/**
+	 * Enables compressing the body of every PATCH request with the given compressor and the
+	 * matching Content-Encoding header. The server decodes the body, so offsets still count
+	 * the file's original bytes and resuming works as usual. If the server answers 415
+	 * Unsupported Media Type, the uploader continues without compression. Pass null, the
+	 * default, to send the file as it is.
+	 */
+	public void setCompressor(TusCompressor compressor) {
+		this.compressor = compressor;
+	}
+	public String getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+	/**
+	 * Enables the tus Checksum extension: every PATCH request carries an Upload-Checksum header
+	 * and the server rejects a request whose data does not match it with 460, after which only
+	 * that request is sent again. Since the header is sent before the body, every request then
+	 * carries exactly one chunk. The algorithm is used if the server supports it, otherwise one
+	 * the server lists, see {@link #negotiateChecksumAlgorithm()}. Pass null, the default, to
+	 * send no checksums.
+	 *
+	 * @param checksumAlgorithm Name of the algorithm, e.g. {@link TusChecksum#CRC32C}
+	 */
+	public void setChecksumAlgorithm(String checksumAlgorithm) {
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+	public String getContentDigestAlgorithm() {
+		return contentDigestAlgorithm;
+	}
+	/**
+	 * Enables computing a digest of every upload's whole content while it is sent. Once an
+	 * upload is finished, the digest is available from {@link TusUploader#getContentDigest()}
+	 * and is kept in the {@link TusURLStore} next to the upload's URL, under
+	 * {@link #DIGEST_PREFIX} + fingerprint. An upload which is resumed first reads what was
+	 * sent before to bring the digest up to date. Pass null, the default, to compute none.
+	 *
+	 * @param contentDigestAlgorithm Name of the algorithm, e.g. {@link TusChecksum#SHA256}
+	 */
+	public void setContentDigestAlgorithm(String contentDigestAlgorithm) {
+		this.contentDigestAlgorithm = contentDigestAlgorithm;
+	}
+	public TusRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	/**
+	 * Limits the rate at which all uploads of this client send data together. The limiter can
+	 * also be shared between clients, and its rate can be changed while uploads are running.
+	 * Pass null, the default, to send as fast as the connection allows.
+	 */
+	public void setRateLimiter(TusRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	public long getHostRateLimit() {
+		return hostRateLimit;
+	}
+	/**
+	 * Limits the rate at which the uploads of this client send data to any one host, in
+	 * addition to the limit set with {@link #setRateLimiter(TusRateLimiter)}. Changing it also
+	 * changes the limit of hosts already being uploaded to; a single host's limit can be changed
+	 * through {@link #getHostRateLimiter(URL)}.
+	 *
+	 * @param bytesPerSecond Average number of bytes per second and host, 0 for no limit
+	 */
+	public void setHostRateLimit(long bytesPerSecond) {
+		this.hostRateLimit = bytesPerSecond;
+		for(TusRateLimiter limiter : hostRateLimiters.values()) {
+			limiter.setRate(bytesPerSecond);
+		}
+	}
+	/**
+	 * @return The limiter shared by all uploads of this client to the URL's host, or null if
+	 * no host limit is set and the host has none yet
+	 */
+	public TusRateLimiter getHostRateLimiter(URL url) {
+		String host = url.getProtocol() + "://" + url.getAuthority();
+		if(hostRateLimit <= 0) {
+			return hostRateLimiters.get(host);
+		}
+		return hostRateLimiters.computeIfAbsent(host, new Function<String, TusRateLimiter>() {
+			@Override
+			public TusRateLimiter apply(String key) {
+				return new TusRateLimiter(hostRateLimit);
+			}
+		});
+	}
+	public int getCreationWithUploadSize() {
+		return creationWithUploadSize;
+	}
+	/**
+	 * Sets the largest upload which {@link #createUploads(List, int)} sends within its
+	 * creation request if the server supports the creation-with-upload extension. The whole
+	 * upload is held in memory while it is sent. The default is 256 KiB; 0 disables it.
+	 */
+	public void setCreationWithUploadSize(int creationWithUploadSize) {
+		this.creationWithUploadSize = creationWithUploadSize;
+	}
 	public Map<String, String> getHeaders() {
 		return headers;
 	}
+	/**
+	 * Sets headers added to every request. The map is copied and turned into the list of
+	 * headers every request starts with, so later changes to it have no effect until it is
+	 * set again.
+	 */
 	public void setHeaders(Map<String, String> headers) {
+		String[] prepared = new String[]{"Tus-Resumable", TUS_VERSION};
+		if(headers != null) {
+			headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+			prepared = Arrays.copyOf(prepared, 2 + headers.size() * 2);
+			int i = 2;
+			for(Map.Entry<String, String> entry : headers.entrySet()) {
+				prepared[i++] = entry.getKey();
+				prepared[i++] = entry.getValue();
+			}
+		}
 		this.headers = headers;
+		this.preparedHeaders = prepared;
 	}
     
 	 public TusUploader createUpload(TusFileStream upload) throws TusProtocolException, IOException {
-	        HttpURLConnection connection = (HttpURLConnection) baseURL.openConnection();
+	        TusConnection connection = postUpload(upload, null);
+	        String urlStr = connection.getHeaderField("Location");
+
+	        // The upload URL must be relative to the URL of the request by which is was returned,
+	        // not the upload creation URL. In most cases, there is no difference between those two
+	        // but there may be cases in which the POST request is redirected.
+	        URL uploadURL = new URL(connection.getURL(), urlStr);
+
+	        TusUploader uploader = new TusUploader(this, uploadURL, upload, 0);
+	        if(resumingEnabled) {
+	            // A content fingerprint may still be computed, so it is stored once available
+	            // instead of delaying the upload. If it cannot be computed, finish() reports it.
+	            final TusURLStore store = urlStore;
+	            final String storedURL = urlStr;
+	            uploader.setUrlStored(upload.getFingerprintFuture().thenAccept(new Consumer<String>() {
+	                @Override
+	                public void accept(String fingerprint) {
+	                    store.put(fingerprint, storedURL);
+	                }
+	            }));
+	        }
+
+	        return uploader;
+	    }
+
+	    /**
+	     * Create many uploads with a bounded number of creation requests in flight, for batches
+	     * of small files whose upload time is dominated by round trips rather than bandwidth. The
+	     * requests run concurrently on connections the transport keeps alive; with the default
+	     * transport at most http.maxConnections (5 by default) idle connections are kept per host.
+	     * <p>
+	     * If the server supports the creation-with-upload extension, an upload of at most
+	     * {@link #getCreationWithUploadSize()} bytes is sent within its creation request, unless
+	     * compression, checksums or a content digest are enabled. When the server takes it all, the
+	     * upload needs no further request and its uploader's {@link TusUploader#uploadChunk()}
+	     * returns -1 right away. Every other uploader continues with PATCH requests as usual.
+	     * <p>
+	     * Instead of storing every URL on its own, the URLs are stored with one
+	     * {@link TusURLStore#putAll(Map)} and uploads finished by their creation request are
+	     * recorded with one {@link TusCompletionIndex#markAllCompleted(Map, Map)} once all
+	     * requests are done, including when some of them failed.
+	     *
+	     * @param uploads Uploads to create
+	     * @param concurrency Maximum number of creation requests in flight
+	     * @return An uploader for every upload, in the same order. Call {@link TusUploader#finish()}
+	     * on each as usual.
+	     * @throws TusBatchException Thrown if any upload could not be created. It carries the
+	     * uploaders of the uploads which were, and the failure of each which was not.
+	     */
+	    public List<TusUploader> createUploads(List<TusFileStream> uploads, int concurrency) throws TusProtocolException, IOException {
+	        if(concurrency < 1) {
+	            throw new IllegalArgumentException("concurrency must be at least 1");
+	        }
+	        final boolean withUpload = creationWithUploadSize > 0 && compressor == null
+	                && checksumAlgorithm == null && contentDigestAlgorithm == null
+	                && supportsExtension("creation-with-upload");
+	        final Map<String, String> created = new ConcurrentHashMap<String, String>();
+	        final Map<String, String> completedURLs = new ConcurrentHashMap<String, String>();
+	        final Map<String, Long> completedSizes = new ConcurrentHashMap<String, Long>();
+
+	        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, uploads.size())),
+	                new TusThreadFactory("tus-create"));
+	        List<Future<TusUploader>> futures = new ArrayList<Future<TusUploader>>(uploads.size());
+	        List<TusUploader> uploaders = new ArrayList<TusUploader>(uploads.size());
+	        List<Throwable> failures = new ArrayList<Throwable>(uploads.size());
+	        Throwable failure = null;
+	        try {
+	            for(final TusFileStream upload : uploads) {
+	                futures.add(pool.submit(new Callable<TusUploader>() {
+	                    @Override
+	                    public TusUploader call() throws Exception {
+	                        return createInBatch(upload, withUpload, created, completedURLs, completedSizes);
+	                    }
+	                }));
+	            }
+	            // Wait for every request, so no URL is created after the entries are committed.
+	            for(Future<TusUploader> future : futures) {
+	                Throwable error = null;
+	                try {
+	                    uploaders.add(future.get());
+	                } catch(ExecutionException e) {
+	                    error = e.getCause();
+	                    uploaders.add(null);
+	                }
+	                failures.add(error);
+	                if(error != null && failure == null) {
+	                    failure = error;
+	                }
+	            }
+	        } catch(InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	            InterruptedIOException interrupted = new InterruptedIOException("batch creation interrupted");
+	            if(failure == null) {
+	                failure = interrupted;
+	            }
+	            // Keep what is created already and fail the uploads still in flight.
+	            for(int i = uploaders.size(); i < futures.size(); i++) {
+	                Future<TusUploader> future = futures.get(i);
+	                TusUploader uploader = null;
+	                if(future.isDone() && !future.isCancelled()) {
+	                    try {
+	                        uploader = future.get();
+	                    } catch(ExecutionException | InterruptedException e2) {
+	                        // Failed anyway.
+	                    }
+	                }
+	                uploaders.add(uploader);
+	                failures.add(uploader == null ? interrupted : null);
+	            }
+	        } finally {
+	            pool.shutdownNow();
+	        }
+
+	        if(resumingEnabled && !created.isEmpty()) {
+	            urlStore.putAll(created);
+	        }
+	        if(completionIndex != null && !completedURLs.isEmpty()) {
+	            completionIndex.markAllCompleted(completedURLs, completedSizes);
+	        }
+
+	        if(failure != null) {
+	            throw new TusBatchException(uploaders, failures, failure);
+	        }
+	        return uploaders;
+	    }
+
+	    private TusUploader createInBatch(TusFileStream upload, boolean withUpload, Map<String, String> created,
+	            Map<String, String> completedURLs, Map<String, Long> completedSizes) throws TusProtocolException, IOException {
+	        long started = System.nanoTime();
+	        byte[] body = null;
+	        if(withUpload && !upload.isLengthDeferred() && upload.getSize() <= creationWithUploadSize) {
+	            body = readBody(upload);
+	        }
+
+	        TusConnection connection = postUpload(upload, body);
+	        String urlStr = connection.getHeaderField("Location");
+	        URL uploadURL = new URL(connection.getURL(), urlStr);
+
+	        long offset = 0;
+	        if(body != null) {
+	            // Without a valid offset the uploader starts from 0 and resynchronises with the
+	            // server's offset if that is wrong.
+	            try {
+	                offset = Math.max(0, Math.min(body.length, Long.parseLong(connection.getHeaderField("Upload-Offset"))));
+	            } catch(NumberFormatException e) {
+	                offset = 0;
+	            }
+	            metrics.bytesSent(offset);
+	        }
+
+	        String fingerprint = upload.getFingerprint();
+	        if(fingerprint != null) {
+	            created.put(fingerprint, urlStr);
+	        }
+	        if(body == null || offset < body.length) {
+	            return new TusUploader(this, uploadURL, upload, offset);
+	        }
+
+	        if(fingerprint != null && !upload.isPartial() && upload.hasContentFingerprint()) {
+	            completedURLs.put(fingerprint, uploadURL.toString());
+	            completedSizes.put(fingerprint, offset);
+	        }
+	        metrics.uploadCompleted(offset, System.nanoTime() - started);
+	        return TusUploader.completed(this, uploadURL, upload);
+	    }
+
+	    private static byte[] readBody(TusFileStream upload) throws IOException {
+	        byte[] body = new byte[(int) upload.getSize()];
+	        ByteBuffer buffer = ByteBuffer.wrap(body);
+	        while(buffer.hasRemaining()) {
+	            if(upload.readAt(buffer, buffer.position()) == -1) {
+	                throw new IOException("upload ended after " + buffer.position() + " of " + body.length + " bytes");
+	            }
+	        }
+	        return body;
+	    }
+
+	    /**
+	     * Send the POST request creating an upload.
+	     *
+	     * @param body Whole content of the upload sent using the creation-with-upload extension,
+	     * or null to create the upload without content
+	     * @return The connection, whose response has a success status and a Location header
+	     */
+	    private TusConnection postUpload(TusFileStream upload, byte[] body) throws TusProtocolException, IOException {
+	        TusConnection connection = transport.openConnection(baseURL);
+	        boolean created = false;
+	        try {
+	            created = sendPostUpload(connection, upload, body);
+	        } finally {
+	            // Only the connection of a created upload is read further by the caller.
+	            if(!created) {
+	                connection.disconnect();
+	            }
+	        }
+	        return connection;
+	    }
+
+	    private boolean sendPostUpload(TusConnection connection, TusFileStream upload, byte[] body) throws TusProtocolException, IOException {
 	        connection.setRequestMethod("POST");
 	        prepareConnection(connection);
 
@@ -77,10 +562,30 @@ public class TusClient {
 	            connection.setRequestProperty("Upload-Metadata", encodedMetadata);
 	        }
 
-	        connection.addRequestProperty("Upload-Length", Long.toString(upload.getSize()));
-	        connection.connect();
+	        if(upload.isLengthDeferred()) {
+	            if(!supportsExtension("creation-defer-length")) {
+	                throw new TusProtocolException("server does not support the creation-defer-length extension");
+	            }
+	            connection.addRequestProperty("Upload-Defer-Length", "1");
+	        } else {
+	            connection.addRequestProperty("Upload-Length", Long.toString(upload.getSize()));
+	        }
+	        if(upload.isPartial()) {
+	            connection.addRequestProperty("Upload-Concat", "partial");
+	        }
+	        long started = System.nanoTime();
+	        if(body != null) {
+	            connection.setRequestProperty("Content-Type", "application/offset+octet-stream");
+	            connection.setFixedLengthStreamingMode(body.length);
+	            OutputStream output = connection.getOutputStream();
+	            output.write(body);
+	            output.close();
+	        } else {
+	            connection.connect();
+	        }
 
 	        int responseCode = connection.getResponseCode();
+	        metrics.requestCompleted("POST", System.nanoTime() - started);
 	        if(!(responseCode >= 200 && responseCode < 300)) {
 	            throw new TusProtocolException("unexpected status code (" + responseCode + ") while creating upload", connection);
 	        }
@@ -89,17 +594,55 @@ public class TusClient {
 	        if(urlStr == null || urlStr.length() == 0) {
 	            throw new TusProtocolException("missing upload URL in response for creating upload", connection);
 	        }
+	        return true;
+	    }
 
-	        // The upload URL must be relative to the URL of the request by which is was returned,
-	        // not the upload creation URL. In most cases, there is no difference between those two
-	        // but there may be cases in which the POST request is redirected.
-	        URL uploadURL = new URL(connection.getURL(), urlStr);
+	    /**
+	     * Create the final upload of the Concatenation extension which stitches the given partial
+	     * uploads together, in the given order. The server must support the "concatenation"
+	     * extension and all partial uploads should be finished when this request is sent.
+	     *
+	     * @param upload The file whose parts have been uploaded. Only its metadata is sent.
+	     * @param partialURLs URLs of the partial uploads, in the order of their byte ranges
+	     * @return URL of the final upload
+	     * @throws TusProtocolException Thrown if the remote server sent an unexpected response, e.g.
+	     * wrong status codes or missing/invalid headers.
+	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
+	     */
+	    public URL concatenateUploads(TusFileStream upload, List<URL> partialURLs) throws TusProtocolException, IOException {
+	        StringBuilder concat = new StringBuilder("final;");
+	        for(int i = 0; i < partialURLs.size(); i++) {
+	            if(i > 0) {
+	                concat.append(' ');
+	            }
+	            concat.append(partialURLs.get(i).toString());
+	        }
 
-	        if(resumingEnabled) {
-	            urlStore.put(upload.getFingerprint(), urlStr);
+	        TusConnection connection = transport.openConnection(baseURL);
+	        connection.setRequestMethod("POST");
+	        prepareConnection(connection);
+
+	        String encodedMetadata = upload.getEncodedMetadata();
+	        if(encodedMetadata.length() > 0) {
+	            connection.setRequestProperty("Upload-Metadata", encodedMetadata);
+	        }
+
+	        connection.addRequestProperty("Upload-Concat", concat.toString());
+	        long started = System.nanoTime();
+	        connection.connect();
+
+	        int responseCode = connection.getResponseCode();
+	        metrics.requestCompleted("POST", System.nanoTime() - started);
+	        if(!(responseCode >= 200 && responseCode < 300)) {
+	            throw new TusProtocolException("unexpected status code (" + responseCode + ") while concatenating uploads", connection);
+	        }
+
+	        String urlStr = connection.getHeaderField("Location");
+	        if(urlStr == null || urlStr.length() == 0) {
+	            throw new TusProtocolException("missing upload URL in response for concatenating uploads", connection);
 	        }
 
-	        return new TusUploader(this, uploadURL, upload, 0);
+	        return new URL(connection.getURL(), urlStr);
 	    }
 
 	    /**
@@ -130,13 +673,31 @@ public class TusClient {
 	        }
 
 	        URL url = new URL(baseURL, uploadURL);
-	        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+	        long offset = probeOffset(url);
+
+	        return new TusUploader(this, url, upload, offset);
+	    }
+
+	    /**
+	     * Ask the server for the current offset of an upload using a HEAD request. This is used
+	     * when resuming and by {@link TusUploader} to continue in place after a failed request.
+	     *
+	     * @param uploadURL URL of the upload
+	     * @return The number of bytes the server has received for the upload
+	     * @throws TusProtocolException Thrown if the remote server sent an unexpected response, e.g.
+	     * wrong status codes or missing/invalid headers.
+	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
+	     */
+	    public long probeOffset(URL uploadURL) throws TusProtocolException, IOException {
+	        TusConnection connection = transport.openConnection(uploadURL);
 	        connection.setRequestMethod("HEAD");
 	        prepareConnection(connection);
 
+	        long started = System.nanoTime();
 	        connection.connect();
 
 	        int responseCode = connection.getResponseCode();
+	        metrics.requestCompleted("HEAD", System.nanoTime() - started);
 	        if(!(responseCode >= 200 && responseCode < 300)) {
 	            throw new TusProtocolException("unexpected status code (" + responseCode + ") while resuming upload", connection);
 	        }
@@ -145,9 +706,37 @@ public class TusClient {
 	        if(offsetStr == null || offsetStr.length() == 0) {
 	            throw new TusProtocolException("missing upload offset in response for resuming upload", connection);
 	        }
-	        long offset = Long.parseLong(offsetStr);
+	        try {
+	            return Long.parseLong(offsetStr);
+	        } catch(NumberFormatException e) {
+	            throw new TusProtocolException("invalid upload offset in response for resuming upload", connection);
+	        }
+	    }
 
-	        return new TusUploader(this, url, upload, offset);
+	    /**
+	     * Delete an upload on the server using the tus Termination extension, e.g. after it was
+	     * cancelled, so the server frees what it has stored. An upload the server does not know
+	     * (anymore) counts as deleted.
+	     *
+	     * @param uploadURL URL of the upload
+	     * @throws TusProtocolException Thrown if the server refused to delete the upload, e.g.
+	     * because it does not support the extension
+	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
+	     */
+	    public void terminateUpload(URL uploadURL) throws TusProtocolException, IOException {
+	        TusConnection connection = transport.openConnection(uploadURL);
+	        connection.setRequestMethod("DELETE");
+	        prepareConnection(connection);
+
+	        long started = System.nanoTime();
+	        connection.connect();
+
+	        int responseCode = connection.getResponseCode();
+	        metrics.requestCompleted("DELETE", System.nanoTime() - started);
+	        connection.disconnect();
+	        if(!(responseCode >= 200 && responseCode < 300) && responseCode != 404 && responseCode != 410) {
+	            throw new TusProtocolException("unexpected status code (" + responseCode + ") while terminating upload", connection);
+	        }
 	    }
 
 	    /**
@@ -155,12 +744,22 @@ public class TusClient {
 	     * an {@link ResumingNotEnabledException} or {@link FingerprintNotFoundException}, a new upload
 	     * will be created using {@link #createUpload(TusUpload)}.
 	     *
+	     * If the {@link TusCompletionIndex} knows the upload's content as finished, no request is sent
+	     * at all and the returned uploader is already complete.
+	     *
 	     * @param upload The file for which an upload will be resumed
 	     * @throws TusProtocolException Thrown if the remote server sent an unexpected response, e.g.
 	     * wrong status codes or missing/invalid headers.
 	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
 	     */
 	    public TusUploader resumeOrCreateUpload(TusFileStream upload) throws TusProtocolException, IOException {
+	        if(completionIndex != null && !upload.isPartial() && upload.hasContentFingerprint()) {
+	            String completedURL = completionIndex.getCompletedURL(upload.getFingerprint(), upload.getSize());
+	            if(completedURL != null) {
+	                return TusUploader.completed(this, new URL(baseURL, completedURL), upload);
+	            }
+	        }
+
 	        try {
 	            return resumeUpload(upload);
 	        } catch(FingerprintNotFoundException e) {
@@ -170,7 +769,7 @@ public class TusClient {
 	        } catch(TusProtocolException e) {
 	            // If the attempt to resume returned a 404 Not Found, we immediately try to create a new
 	            // one since TusExectuor would not retry this operation.
-	            HttpURLConnection connection = e.getCausingConnection();
+	            TusConnection connection = e.getCausingConnection();
 	            if(connection != null && connection.getResponseCode() == 404) {
 	                return createUpload(upload);
 	            }
@@ -179,25 +778,109 @@ public class TusClient {
 	        }
 	    }
 
+	    /**
+	     * Check many uploads against the {@link TusCompletionIndex} at once, e.g. before syncing a
+	     * directory, so only the unknown files need to be uploaded.
+	     *
+	     * @param uploads Uploads to check
+	     * @return The uploads whose content is not known to be uploaded completely, in their
+	     * original order
+	     */
+	    public List<TusFileStream> filterCompleted(Collection<TusFileStream> uploads) {
+	        List<TusFileStream> pending = new ArrayList<TusFileStream>(uploads.size());
+	        for(TusFileStream upload : uploads) {
+	            if(completionIndex == null || !upload.hasContentFingerprint()
+	                    || completionIndex.getCompletedURL(upload.getFingerprint(), upload.getSize()) == null) {
+	                pending.add(upload);
+	            }
+	        }
+	        return pending;
+	    }
+
+	    /**
+	     * Check whether the server supports a tus extension, using the Tus-Extension header of an
+	     * OPTIONS request to the base URL. The answer is cached for the lifetime of the client.
+	     *
+	     * @param extension Name of the extension, e.g. "creation-defer-length"
+	     * @throws TusProtocolException Thrown if the server does not answer the OPTIONS request
+	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
+	     */
+	    public boolean supportsExtension(String extension) throws TusProtocolException, IOException {
+	        if(serverExtensions == null) {
+	            loadServerCapabilities();
+	        }
+	        return serverExtensions.contains(extension);
+	    }
+
+	    /**
+	     * Pick the checksum algorithm for Upload-Checksum headers: the one set with
+	     * {@link #setChecksumAlgorithm(String)} if both the server and this JVM support it, e.g.
+	     * not "crc32c" before Java 9, otherwise the first algorithm listed by the server which this
+	     * JVM supports.
+	     *
+	     * @return Name of the algorithm, or null if checksums are disabled or the server does not
+	     * support the "checksum" extension
+	     * @throws TusProtocolException Thrown if the server does not answer the OPTIONS request
+	     * @throws IOException Thrown if an exception occurs while issuing the HTTP request.
+	     */
+	    public String negotiateChecksumAlgorithm() throws TusProtocolException, IOException {
+	        if(checksumAlgorithm == null || !supportsExtension("checksum")) {
+	            return null;
+	        }
+	        if(serverChecksumAlgorithms.contains(checksumAlgorithm) && TusChecksum.isSupported(checksumAlgorithm)) {
+	            return checksumAlgorithm;
+	        }
+	        for(String algorithm : serverChecksumAlgorithms) {
+	            if(TusChecksum.isSupported(algorithm)) {
+	                return algorithm;
+	            }
+	        }
+	        return null;
+	    }
+
+	    private void loadServerCapabilities() throws TusProtocolException, IOException {
+	        TusConnection connection = transport.openConnection(baseURL);
+	        connection.setRequestMethod("OPTIONS");
+	        prepareConnection(connection);
+	        connection.connect();
+
+	        int responseCode = connection.getResponseCode();
+	        connection.disconnect();
+	        if(!(responseCode >= 200 && responseCode < 300)) {
+	            throw new TusProtocolException("unexpected status code (" + responseCode + ") while asking for extensions", connection);
+	        }
+
+	        serverChecksumAlgorithms = splitHeader(connection.getHeaderField("Tus-Checksum-Algorithm"));
+	        serverExtensions = splitHeader(connection.getHeaderField("Tus-Extension"));
+	    }
+
+	    private static Collection<String> splitHeader(String header) {
+	        Collection<String> values = new LinkedHashSet<String>();
+	        if(header != null) {
+	            for(String value : header.split(",")) {
+	                values.add(value.trim());
+	            }
+	        }
+	        return values;
+	    }
+
 	    /**
 	     * Set headers used for every HTTP request. Currently, this will add the Tus-Resumable header
 	     * and any custom header which can be configured using {@link #setHeaders(Map)},
 	     *
 	     * @param connection The connection whose headers will be modified.
 	     */
-	    public void prepareConnection(HttpURLConnection connection) {
+	    public void prepareConnection(TusConnection connection) {
 	        // Only follow redirects, if the POST methods is preserved. If http.strictPostRedirect is
 	        // disabled, a POST request will be transformed into a GET request which is not wanted by us.
 	        // See: http://grepcode.com/file/repository.grepcode.com/java/root/jdk/openjdk/7u40-b43/sun/net/www/protocol/http/HttpURLConnection.java#2372
 	        connection.setInstanceFollowRedirects(Boolean.getBoolean("http.strictPostRedirect"));
 
 	        connection.setConnectTimeout(connectTimeout);
-	        connection.addRequestProperty("Tus-Resumable", TUS_VERSION);
-
-	        if(headers != null) {
-	            for (Map.Entry<String, String> entry : headers.entrySet()) {
-	                connection.addRequestProperty(entry.getKey(), entry.getValue());
-	            }
+	        connection.setReadTimeout(readTimeout);
+	        String[] prepared = preparedHeaders;
+	        for(int i = 0; i < prepared.length; i += 2) {
+	            connection.addRequestProperty(prepared[i], prepared[i + 1]);
 	        }
 	    }
 }
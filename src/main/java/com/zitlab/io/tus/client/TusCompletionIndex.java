@@ -0,0 +1,59 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.util.Map;
+
+/**
+ * Remembers which fingerprints have been uploaded completely, so the same content is not
+ * uploaded again. See {@link TusClient#setCompletionIndex(TusCompletionIndex)}.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusCompletionIndex {
+    /**
+     * Record that the upload with the given fingerprint has been finished.
+     *
+     * @param fingerprint Fingerprint of the uploaded file
+     * @param url URL of the finished upload
+     * @param size Total size of the upload
+     */
+    public void markCompleted(String fingerprint, String url, long size);
+
+    /**
+     * @param fingerprint Fingerprint of the file
+     * @param size Size of the file, an entry recorded with another size does not match
+     * @return URL of the finished upload, or null if the content has not been uploaded yet
+     */
+    public String getCompletedURL(String fingerprint, long size);
+
+    public void remove(String fingerprint);
+
+    /**
+     * Record several finished uploads at once, e.g. a batch of small files each sent completely
+     * with its creation request.
+     *
+     * @param urls URLs of the finished uploads by fingerprint
+     * @param sizes Total sizes of the uploads by fingerprint
+     */
+    public default void markAllCompleted(Map<String, String> urls, Map<String, Long> sizes) {
+        for(Map.Entry<String, String> entry : urls.entrySet()) {
+            markCompleted(entry.getKey(), entry.getValue(), sizes.get(entry.getKey()));
+        }
+    }
+}
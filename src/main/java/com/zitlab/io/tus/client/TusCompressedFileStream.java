@@ -0,0 +1,215 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Uploads a file compressed as a whole, e.g. as a .gz file. The server stores the compressed
+ * data as it is, and since its size is only known once the whole file has been compressed, the
+ * upload is created with Upload-Defer-Length and the length is declared with the last request.
+ * The server must support the "creation-defer-length" extension.
+ *
+ * The compressed data is produced while it is read and offsets count compressed bytes. On
+ * resume, the file is compressed again from its start up to the server's offset, which gives
+ * the same bytes as long as the same compressor settings are used.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusCompressedFileStream extends TusFileStream {
+    private static final int RAW_BLOCK_SIZE = 256 * 1024;
+
+    private final TusCompressor compressor;
+    private final TusFileStream raw;
+    private final Pending pending = new Pending();
+    private OutputStream compressing;
+    private ByteBuffer rawBuffer;
+    private long produced;
+    private volatile long compressedSize = -1;
+
+    public TusCompressedFileStream(File file, TusCompressor compressor) throws IOException {
+        super(file);
+        this.compressor = compressor;
+        this.raw = new TusFileStream(file);
+        putMetadata("encoding", compressor.getContentEncoding());
+    }
+
+    /**
+     * @return -1 until the whole file has been compressed, the compressed size afterwards
+     */
+    @Override
+    public long getSize() {
+        return compressedSize;
+    }
+
+    @Override
+    public boolean isLengthDeferred() {
+        return true;
+    }
+
+    @Override
+    public String getFingerprint() {
+        return super.getFingerprint() + "-" + compressor.getContentEncoding();
+    }
+
+    @Override
+    public CompletableFuture<String> getFingerprintFuture() {
+        return super.getFingerprintFuture().thenApply(new Function<String, String>() {
+            @Override
+            public String apply(String fingerprint) {
+                return fingerprint + "-" + compressor.getContentEncoding();
+            }
+        });
+    }
+
+    /**
+     * Reads compressed bytes. Reads are expected to be sequential; reading from another
+     * position compresses the file again from its start.
+     */
+    @Override
+    public synchronized int readAt(ByteBuffer buffer, long pos) throws IOException {
+        if(pos != produced - pending.available()) {
+            restart(pos);
+        }
+
+        while(pending.available() == 0) {
+            if(compressedSize >= 0) {
+                return -1;
+            }
+            produce();
+        }
+        return pending.drainTo(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            raw.close();
+        } finally {
+            super.close();
+        }
+    }
+
+    /**
+     * Compress the next block of the file, or finish the compressed data at its end.
+     */
+    private void produce() throws IOException {
+        if(compressing == null) {
+            compressing = compressor.compress(pending);
+            rawBuffer = ByteBuffer.allocate(RAW_BLOCK_SIZE);
+        }
+
+        rawBuffer.clear();
+        int read = raw.read(rawBuffer);
+        if(read == -1) {
+            compressing.close();
+            compressedSize = produced;
+            return;
+        }
+        compressing.write(rawBuffer.array(), 0, read);
+        compressing.flush();
+    }
+
+    /**
+     * Compress again from the start of the file and skip everything before pos.
+     */
+    private void restart(long pos) throws IOException {
+        if(compressing != null && compressedSize < 0) {
+            compressing.close();
+        }
+        compressing = null;
+        produced = 0;
+        compressedSize = -1;
+        pending.clear();
+        raw.seekTo(0);
+
+        long skipped = 0;
+        while(skipped < pos) {
+            if(pending.available() == 0) {
+                if(compressedSize >= 0) {
+                    throw new IOException("offset " + pos + " is beyond the compressed size " + compressedSize);
+                }
+                produce();
+            }
+            skipped += pending.skip(pos - skipped);
+        }
+    }
+
+    /**
+     * Receives the compressed data until it is read.
+     */
+    private class Pending extends OutputStream {
+        private byte[] data = new byte[64 * 1024];
+        private int start;
+        private int end;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if(end + len > data.length) {
+                int available = end - start;
+                if(available + len > data.length) {
+                    data = java.util.Arrays.copyOfRange(data, start, Math.max(data.length * 2, available + len));
+                } else {
+                    System.arraycopy(data, start, data, 0, available);
+                }
+                start = 0;
+                end = available;
+            }
+            System.arraycopy(b, off, data, end, len);
+            end += len;
+            produced += len;
+        }
+
+        int available() {
+            return end - start;
+        }
+
+        int drainTo(ByteBuffer buffer) {
+            int count = Math.min(buffer.remaining(), available());
+            buffer.put(data, start, count);
+            start += count;
+            return count;
+        }
+
+        long skip(long count) {
+            int skipped = (int) Math.min(count, available());
+            start += skipped;
+            return skipped;
+        }
+
+        void clear() {
+            start = 0;
+            end = 0;
+        }
+
+        @Override
+        public void close() {
+            // The compressor closes its target at the end, but more data may still be read.
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses request bodies, see {@link TusClient#setCompressor(TusCompressor)}. Implement
+ * this to plug in other algorithms, e.g. zstd or LZ4 from a native library, under the matching
+ * Content-Encoding. {@link TusDeflateCompressor} provides gzip and deflate.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusCompressor {
+    /**
+     * @return Value of the Content-Encoding header for the compressed data, e.g. "gzip"
+     */
+    public String getContentEncoding();
+
+    /**
+     * Start a new compressed stream written to out. Every request body is compressed as a
+     * stream of its own, so the server can decode each request on its own.
+     *
+     * @param out Stream receiving the compressed data
+     * @return Stream accepting the uncompressed data. Closing it writes the end of the
+     * compressed data and closes out.
+     * @throws IOException Thrown if writing to out fails
+     */
+    public OutputStream compress(OutputStream out) throws IOException;
+}
@@ -0,0 +1,91 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+
+/**
+ * A single HTTP request/response exchange issued by the client. The methods follow
+ * {@link java.net.HttpURLConnection}, which is what the default {@link HttpURLConnectionTransport}
+ * wraps, so other transports can be plugged in through {@link TusClient#setTransport(TusTransport)}.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusConnection {
+    public void setRequestMethod(String method) throws ProtocolException;
+
+    public void setRequestProperty(String key, String value);
+
+    public void addRequestProperty(String key, String value);
+
+    public void setInstanceFollowRedirects(boolean followRedirects);
+
+    public void setConnectTimeout(int timeout);
+
+    /**
+     * Sets how long to wait for response data, e.g. for "100 Continue" or the response
+     * status, before failing with a {@link java.net.SocketTimeoutException}.
+     *
+     * @param timeout Timeout in milliseconds, or 0 to wait forever
+     */
+    public void setReadTimeout(int timeout);
+
+    /**
+     * Announce that a request body of unknown length will be written using
+     * {@link #getOutputStream()}.
+     *
+     * @param chunkLength Preferred chunk length, or 0 for the transport's default
+     */
+    public void setChunkedStreamingMode(int chunkLength);
+
+    /**
+     * Announce that a request body of exactly the given length will be written using
+     * {@link #getOutputStream()}.
+     *
+     * @param contentLength Number of bytes in the request body
+     */
+    public void setFixedLengthStreamingMode(long contentLength);
+
+    /**
+     * Send the request if it has no body. Requests with a body are sent once
+     * {@link #getOutputStream()} is called.
+     */
+    public void connect() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return The response status code, or -1 if no valid response has been received
+     */
+    public int getResponseCode() throws IOException;
+
+    public String getHeaderField(String name);
+
+    /**
+     * @return The URL of the request, which may differ from the requested one after redirects
+     */
+    public URL getURL();
+
+    /**
+     * Release the resources of this exchange. An exchange still in progress is aborted.
+     */
+    public void disconnect();
+}
@@ -0,0 +1,310 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes fingerprints from a file's content instead of its path, so moving or renaming a file
+ * keeps its upload resumable and different files at the same path do not collide.
+ *
+ * In {@link Mode#FULL} mode the file is split into regions which are hashed with SHA-256 in
+ * parallel on a {@link ForkJoinPool}, by default one shared by all instances and kept apart from
+ * the common pool, since the tasks block on file reads. The fingerprint is the SHA-256 of the region digests
+ * and the size. {@link Mode#SAMPLED} only hashes a few blocks at the start, middle and end of the
+ * file, which is much cheaper but can miss changes elsewhere.
+ *
+ * Results are cached per file identity (the inode where the file system has one), modification
+ * time and size, and a computation in progress is shared, so a file is never hashed twice.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusContentFingerprint {
+    public enum Mode {
+        FULL, SAMPLED
+    }
+
+    private static final int MAX_CACHED = 10000;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final Mode mode;
+    private final ForkJoinPool pool;
+    private int regionSize = 8 * 1024 * 1024;
+
+    private final Map<String, CompletableFuture<String>> cache = new LinkedHashMap<String, CompletableFuture<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    /**
+     * Hash on a pool shared by all instances, with a thread per processor.
+     */
+    public TusContentFingerprint(Mode mode) {
+        this(mode, DefaultPool.INSTANCE);
+    }
+
+    /**
+     * @param pool Pool to hash on. Its threads block on file reads, so it should not be the
+     * common pool, which parallel streams and CompletableFuture also use.
+     */
+    public TusContentFingerprint(Mode mode, ForkJoinPool pool) {
+        this.mode = mode;
+        this.pool = pool;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getRegionSize() {
+        return regionSize;
+    }
+
+    /**
+     * Sets the size of the regions hashed in parallel in {@link Mode#FULL} mode. Changing it
+     * changes the fingerprints. The default is 8 MiB.
+     */
+    public void setRegionSize(int regionSize) {
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Start computing the fingerprint of the file in the background, or return the cached or
+     * running computation for it.
+     *
+     * @param file File to fingerprint
+     * @return Future completed with the fingerprint
+     * @throws IOException Thrown if the file's attributes cannot be read
+     */
+    public CompletableFuture<String> compute(final File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object identity = attributes.fileKey() != null ? attributes.fileKey() : file.getAbsolutePath();
+        String key = identity + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+        final long size = attributes.size();
+
+        CompletableFuture<String> future;
+        synchronized(cache) {
+            future = cache.get(key);
+            if(future != null && !future.isCompletedExceptionally()) {
+                return future;
+            }
+            future = new CompletableFuture<String>();
+            cache.put(key, future);
+        }
+
+        final CompletableFuture<String> result = future;
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(mode == Mode.FULL ? hashFull(file, size) : hashSampled(file, size));
+                } catch(Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Compute the fingerprint of the file and wait for it.
+     *
+     * @param file File to fingerprint
+     * @return The fingerprint
+     * @throws IOException Thrown if the file cannot be read
+     */
+    public String fingerprint(File file) throws IOException {
+        return join(compute(file));
+    }
+
+    static String join(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.join();
+        } catch(RuntimeException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private String hashFull(File file, long size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            byte[][] digests = pool.invoke(new RegionTask(channel, size, 0, (int) ((size + regionSize - 1) / regionSize)));
+            MessageDigest combined = sha256();
+            for(byte[] digest : digests) {
+                combined.update(digest);
+            }
+            combined.update(ByteBuffer.allocate(8).putLong(0, size));
+            return "sha256-" + hex(combined.digest()) + "-" + size;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private String hashSampled(File file, long size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+            long[] offsets = new long[]{0, Math.max(0, size / 2 - SAMPLE_SIZE / 2), Math.max(0, size - SAMPLE_SIZE)};
+            for(long offset : offsets) {
+                update(digest, channel, buffer, offset, Math.min(SAMPLE_SIZE, size));
+            }
+            digest.update(ByteBuffer.allocate(8).putLong(0, size));
+            return "sha256s-" + hex(digest.digest()) + "-" + size;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void update(MessageDigest digest, FileChannel channel, ByteBuffer buffer, long offset, long length) throws IOException {
+        long end = offset + length;
+        while(offset < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+            int read = channel.read(buffer, offset);
+            if(read < 0) {
+                throw new IOException("file shrank while it was hashed");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            offset += read;
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            out[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Hashes the regions [first, first + count) and returns their digests in order.
+     */
+    private class RegionTask extends RecursiveTask<byte[][]> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final int first;
+        private final int count;
+
+        RegionTask(FileChannel channel, long size, int first, int count) {
+            this.channel = channel;
+            this.size = size;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected byte[][] compute() {
+            if(count <= 1) {
+                byte[][] result = new byte[count][];
+                if(count == 1) {
+                    result[0] = hashRegion(first);
+                }
+                return result;
+            }
+
+            int half = count / 2;
+            RegionTask left = new RegionTask(channel, size, first, half);
+            RegionTask right = new RegionTask(channel, size, first + half, count - half);
+            left.fork();
+            byte[][] rightDigests = right.compute();
+            byte[][] leftDigests = left.join();
+
+            List<byte[]> all = new ArrayList<byte[]>(count);
+            for(byte[] digest : leftDigests) {
+                all.add(digest);
+            }
+            for(byte[] digest : rightDigests) {
+                all.add(digest);
+            }
+            return all.toArray(new byte[count][]);
+        }
+
+        private byte[] hashRegion(int region) {
+            try {
+                long offset = (long) region * regionSize;
+                long length = Math.min(regionSize, size - offset);
+                MessageDigest digest = sha256();
+                update(digest, channel, ByteBuffer.allocate(Math.min(regionSize, 256 * 1024)), offset, length);
+                return digest.digest();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Holds the default pool, so it is only created once an instance uses it.
+     */
+    private static class DefaultPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("tus-fingerprint-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, null, false);
+    }
+}
@@ -0,0 +1,283 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * {@link TusCompressor} for the "gzip" and "deflate" (zlib) content encodings. The data is cut
+ * into blocks which are compressed separately and joined with sync flushes, each block using
+ * the end of the previous one as dictionary, so the result is a single valid stream which
+ * compresses almost as well as one compressed in a single go. If an executor is set, blocks are
+ * compressed in parallel on it while the caller keeps writing. {@link Deflater}s are pooled and
+ * reused across streams.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusDeflateCompressor implements TusCompressor {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final String encoding;
+    private final int level;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private int blockSize = 128 * 1024;
+    private ExecutorService executor;
+    private int parallelism = 1;
+
+    /**
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param level Compression level from 1 (fastest) to 9 (best), or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public TusDeflateCompressor(String encoding, int level) {
+        if(!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("unsupported encoding " + encoding);
+        }
+        this.encoding = encoding;
+        this.level = level;
+    }
+
+    public TusDeflateCompressor(String encoding) {
+        this(encoding, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return encoding;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the number of uncompressed bytes compressed as one block. The default is 128 KiB.
+     */
+    public void setBlockSize(int blockSize) {
+        if(blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("block size must be at least " + DICTIONARY_SIZE);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Compress blocks on the given executor, with up to parallelism blocks in flight per
+     * stream. Pass null, the default, to compress on the writing thread.
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new BlockStream(out);
+    }
+
+    private byte[] deflate(byte[] block, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            if(dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block, 0, length);
+            if(last) {
+                deflater.finish();
+            }
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(512, Math.min(length, 64 * 1024))];
+            while(true) {
+                int count = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, count);
+                if(last ? deflater.finished() : count < buffer.length) {
+                    break;
+                }
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /**
+     * Compressed stream which collects written bytes into blocks and writes the compressed
+     * blocks in order.
+     */
+    private class BlockStream extends OutputStream {
+        private final OutputStream out;
+        private final boolean gzip = GZIP.equals(encoding);
+        private final Checksum checksum = gzip ? new CRC32() : new Adler32();
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        private byte[] block = new byte[blockSize];
+        private int blockLength;
+        private byte[] dictionary;
+        private long totalIn;
+        private boolean closed;
+
+        BlockStream(OutputStream out) throws IOException {
+            this.out = out;
+            if(gzip) {
+                out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            } else {
+                out.write(new byte[]{0x78, (byte) 0x9c});
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(closed) {
+                throw new IOException("stream closed");
+            }
+            checksum.update(b, off, len);
+            totalIn += len;
+            while(len > 0) {
+                int count = Math.min(len, block.length - blockLength);
+                System.arraycopy(b, off, block, blockLength, count);
+                blockLength += count;
+                off += count;
+                len -= count;
+                if(blockLength == block.length) {
+                    submit(false);
+                }
+            }
+        }
+
+        /**
+         * Writes the blocks compressed so far. Data of the current block stays buffered, so
+         * flushing does not hurt the compression ratio.
+         */
+        @Override
+        public void flush() throws IOException {
+            while(!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+                out.write(await(inFlight.pollFirst()));
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                while(!inFlight.isEmpty()) {
+                    out.write(await(inFlight.pollFirst()));
+                }
+
+                long value = checksum.getValue();
+                if(gzip) {
+                    writeIntLE(value);
+                    writeIntLE(totalIn);
+                } else {
+                    out.write(new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+                }
+            } finally {
+                for(Future<byte[]> future : inFlight) {
+                    future.cancel(false);
+                }
+                out.close();
+            }
+        }
+
+        private void submit(final boolean last) throws IOException {
+            final byte[] data = block;
+            final int length = blockLength;
+            final byte[] previous = dictionary;
+
+            // The last bytes of this block prime the next one.
+            if(length >= DICTIONARY_SIZE) {
+                dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+            } else if(length > 0) {
+                byte[] joined = new byte[Math.min(DICTIONARY_SIZE, (previous == null ? 0 : previous.length) + length)];
+                int fromPrevious = joined.length - length;
+                if(fromPrevious > 0) {
+                    System.arraycopy(previous, previous.length - fromPrevious, joined, 0, fromPrevious);
+                }
+                System.arraycopy(data, 0, joined, fromPrevious, length);
+                dictionary = joined;
+            }
+
+            Callable<byte[]> task = new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return deflate(data, length, previous, last);
+                }
+            };
+            FutureTask<byte[]> future = new FutureTask<byte[]>(task);
+            if(executor == null) {
+                future.run();
+            } else {
+                while(inFlight.size() >= parallelism) {
+                    out.write(await(inFlight.pollFirst()));
+                }
+                executor.execute(future);
+            }
+            inFlight.addLast(future);
+
+            if(!last) {
+                block = new byte[blockSize];
+                blockLength = 0;
+            }
+        }
+
+        private byte[] await(Future<byte[]> future) throws IOException {
+            try {
+                return future.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while compressing");
+            } catch(ExecutionException e) {
+                throw new IOException("compressing failed", e.getCause());
+            }
+        }
+
+        private void writeIntLE(long value) throws IOException {
+            out.write(new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)});
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Uploads every file of a directory tree which has not been uploaded in its current state yet,
+ * e.g. to mirror a tree to a tus server repeatedly.
+ * <ul>
+ * <li>The tree is walked in parallel on a {@link ForkJoinPool}, one task per directory.</li>
+ * <li>A manifest kept in a {@link TusURLStore}, e.g. a {@link JournalURLStore}, records the
+ * size and modification time of every file uploaded. A file whose size and modification time
+ * are unchanged is skipped without reading it or sending any request, so a re-run over an
+ * unchanged tree costs one file status per file.</li>
+ * <li>If a {@link TusContentFingerprint} is set, a changed file is hashed and skipped if its
+ * content is what was uploaded before, e.g. after it was only touched. The upload's
+ * fingerprint is then made of path and hash, so files with the same content are still uploaded
+ * each under its own path. Otherwise it is made of path, size and modification time.</li>
+ * <li>A file the client's {@link TusCompletionIndex} knows as uploaded completely is skipped too
+ * and added to the manifest.</li>
+ * <li>All other files are submitted to a {@link TusUploadManager}, which bounds the number of
+ * concurrent uploads. At most {@link #setMaxPending(int)} files are open at a time.</li>
+ * </ul>
+ * Symbolic links are not followed. Files removed from the tree are not removed on the server.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusDirectorySync {
+    /**
+     * Prefix of the manifest keys, followed by the file's absolute path.
+     */
+    public static final String MANIFEST_PREFIX = "sync:";
+
+    private static final int FLUSH_THRESHOLD = 1000;
+
+    private final TusClient client;
+    private final TusUploadManager manager;
+    private final TusURLStore manifest;
+    private TusContentFingerprint contentFingerprint;
+    private FileFilter filter;
+    private int parallelism = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private int maxPending = 1000;
+
+    private final Object flushLock = new Object();
+    private Map<String, String> unflushed = new HashMap<String, String>();
+
+    /**
+     * @param client Client used for the uploads
+     * @param manager Manager running the uploads
+     * @param manifest Store the manifest is kept in. It may be the client's URL store.
+     */
+    public TusDirectorySync(TusClient client, TusUploadManager manager, TusURLStore manifest) {
+        this.client = client;
+        this.manager = manager;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Enables detecting changes by content: a file whose size or modification time changed is
+     * only uploaded if its content hash differs from the one recorded. Pass null, the default,
+     * to upload every file whose size or modification time changed.
+     */
+    public void setContentFingerprint(TusContentFingerprint contentFingerprint) {
+        this.contentFingerprint = contentFingerprint;
+    }
+
+    public TusContentFingerprint getContentFingerprint() {
+        return contentFingerprint;
+    }
+
+    /**
+     * Sets a filter for the files and directories to sync. A directory which is not accepted is
+     * not walked.
+     */
+    public void setFilter(FileFilter filter) {
+        this.filter = filter;
+    }
+
+    public FileFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets the number of threads walking the tree. The default is the number of processors,
+     * but at least 4, since walking mostly waits for the file system.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets how many files may be submitted to the manager and not finished yet. Every such file
+     * is held open, so the walk pauses once the limit is reached. The default is 1000.
+     */
+    public void setMaxPending(int maxPending) {
+        if(maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be at least 1");
+        }
+        this.maxPending = maxPending;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Walk the tree, upload what has changed and wait until all uploads are finished.
+     *
+     * @param root Directory to sync
+     * @return What was done for the files of the tree
+     * @throws IOException Thrown if the root is not a directory or the manifest cannot be read
+     */
+    public Result sync(File root) throws IOException {
+        if(!root.isDirectory()) {
+            throw new IOException(root + " is not a directory");
+        }
+
+        Result result = new Result();
+        Semaphore pending = new Semaphore(maxPending);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root.toPath().toAbsolutePath(), root.toPath().toAbsolutePath(), result, pending));
+            // Wait for the uploads still running.
+            pending.acquire(maxPending);
+            pending.release(maxPending);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("directory sync interrupted");
+        } finally {
+            pool.shutdown();
+            flush(true);
+        }
+        return result;
+    }
+
+    private void visit(Path root, Path path, BasicFileAttributes attributes, Result result, Semaphore pending) throws IOException, InterruptedException {
+        result.scanned.incrementAndGet();
+        final File file = path.toFile();
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        final String key = MANIFEST_PREFIX + file.getAbsolutePath();
+
+        // Entry format: size, modification time, content hash or "-", URL.
+        String[] entry = null;
+        String value = manifest.get(key);
+        if(value != null) {
+            entry = value.split(" ", 4);
+            if(entry.length < 4) {
+                entry = null;
+            }
+        }
+        if(entry != null && entry[0].equals(Long.toString(size)) && entry[1].equals(Long.toString(modified))) {
+            result.unchanged.incrementAndGet();
+            return;
+        }
+
+        final String hash = contentFingerprint != null ? contentFingerprint.fingerprint(file) : null;
+        if(entry != null && hash != null && hash.equals(entry[2])) {
+            record(key, size, modified, hash, entry[3]);
+            result.unchanged.incrementAndGet();
+            return;
+        }
+
+        pending.acquire();
+        final TusFileStream upload;
+        try {
+            upload = new TusFileStream(file);
+        } catch(IOException e) {
+            pending.release();
+            throw e;
+        }
+        // Keyed by path, so files with the same content do not share one upload and each reaches
+        // the server with its own relativePath. Without a content hash, include the modification
+        // time, so neither the completion index nor a stored resume URL takes a file edited in
+        // place for the one uploaded.
+        upload.setFingerprint(hash != null ? file.getAbsolutePath() + "-" + hash
+                : String.format("%s-%d-%d", file.getAbsolutePath(), size, modified));
+        upload.putMetadata("relativePath", root.relativize(path).toString().replace(File.separatorChar, '/'));
+
+        TusCompletionIndex completionIndex = client.getCompletionIndex();
+        if(completionIndex != null) {
+            String completedURL = completionIndex.getCompletedURL(upload.getFingerprint(), size);
+            if(completedURL != null) {
+                upload.close();
+                pending.release();
+                record(key, size, modified, hash, completedURL);
+                result.unchanged.incrementAndGet();
+                return;
+            }
+        }
+
+        final Result summary = result;
+        final Semaphore permits = pending;
+        manager.submit(client, upload).whenComplete(new BiConsumer<URL, Throwable>() {
+            @Override
+            public void accept(URL url, Throwable error) {
+                try {
+                    upload.close();
+                } catch(IOException e) {
+                    // Already closed once the upload finished.
+                }
+                if(error == null) {
+                    record(key, size, modified, hash, url.toString());
+                    summary.uploaded.incrementAndGet();
+                } else {
+                    summary.failures.put(file, error);
+                }
+                permits.release();
+            }
+        });
+    }
+
+    private void record(String key, long size, long modified, String hash, String url) {
+        synchronized(flushLock) {
+            unflushed.put(key, size + " " + modified + " " + (hash != null ? hash : "-") + " " + url);
+        }
+        flush(false);
+    }
+
+    /**
+     * Write the recorded entries to the manifest with one {@link TusURLStore#putAll(Map)}
+     * once enough have been collected, or all of them if forced.
+     */
+    private void flush(boolean force) {
+        Map<String, String> batch;
+        synchronized(flushLock) {
+            if(unflushed.isEmpty() || (!force && unflushed.size() < FLUSH_THRESHOLD)) {
+                return;
+            }
+            batch = unflushed;
+            unflushed = new HashMap<String, String>();
+        }
+        manifest.putAll(batch);
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path directory;
+        private final Result result;
+        private final Semaphore pending;
+
+        DirectoryTask(Path root, Path directory, Result result, Semaphore pending) {
+            this.root = root;
+            this.directory = directory;
+            this.result = result;
+            this.pending = pending;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+            try {
+                DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+                try {
+                    for(Path path : entries) {
+                        if(filter != null && !filter.accept(path.toFile())) {
+                            continue;
+                        }
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            if(attributes.isDirectory()) {
+                                subdirectories.add(new DirectoryTask(root, path, result, pending));
+                            } else if(attributes.isRegularFile()) {
+                                visit(root, path, attributes, result, pending);
+                            }
+                        } catch(IOException e) {
+                            result.failures.put(path.toFile(), e);
+                        }
+                    }
+                } finally {
+                    entries.close();
+                }
+            } catch(IOException e) {
+                result.failures.put(directory.toFile(), e);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Counts of what a {@link TusDirectorySync#sync(File)} did.
+     */
+    public static class Result {
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong uploaded = new AtomicLong();
+        private final Map<File, Throwable> failures = new ConcurrentHashMap<File, Throwable>();
+
+        /**
+         * @return Number of files found in the tree
+         */
+        public long getScanned() {
+            return scanned.get();
+        }
+
+        /**
+         * @return Number of files skipped since they were uploaded in their current state before
+         */
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+
+        /**
+         * @return Number of files uploaded
+         */
+        public long getUploaded() {
+            return uploaded.get();
+        }
+
+        /**
+         * @return Files and directories which could not be read or uploaded, with the error
+         */
+        public Map<File, Throwable> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+    }
+}
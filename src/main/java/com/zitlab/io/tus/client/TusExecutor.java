@@ -1,9 +1,16 @@
 package com.zitlab.io.tus.client;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public abstract class TusExecutor {
     private int[] delays = new int[]{500, 1000, 2000, 3000};
+    private TusRetryPolicy retryPolicy;
+    private URL baseURL;
+    private TusMetrics metrics = TusMetrics.NONE;
 
    
     public void setDelays(int[] delays) {
@@ -15,8 +22,35 @@ public abstract class TusExecutor {
         return delays;
     }
 
+    /**
+     * Let a retry policy decide about retries instead of the fixed delays.
+     *
+     * @param retryPolicy Policy to use, or null to use the delays again
+     * @param baseURL URL of the server the attempts are made against, used by the policy to
+     * tell servers apart, e.g. for circuit breaking
+     */
+    public void setRetryPolicy(TusRetryPolicy retryPolicy, URL baseURL) {
+        this.retryPolicy = retryPolicy;
+        this.baseURL = baseURL;
+    }
+
+    public TusRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets where retries are reported to, usually {@link TusClient#getMetrics()}.
+     */
+    public void setMetrics(TusMetrics metrics) {
+        this.metrics = metrics == null ? TusMetrics.NONE : metrics;
+    }
+
  
     public boolean makeAttempts() throws TusProtocolException, IOException {
+        if(retryPolicy != null) {
+            return makePolicyAttempts();
+        }
+
         int attempt = -1;
         while(true) {
             attempt++;
@@ -37,12 +71,14 @@ public abstract class TusExecutor {
                     // is thrown.
                     throw e;
                 }
+                metrics.retried(TusFailure.classify(e));
             }  catch(IOException e) {
                 if(attempt >= delays.length) {
                     // We exceeds the number of maximum retries. In this case the latest exception
                     // is thrown.
                     throw e;
                 }
+                metrics.retried(TusFailure.classify(e));
             }
 
             try {
@@ -56,6 +92,57 @@ public abstract class TusExecutor {
         }
     }
 
+    private boolean makePolicyAttempts() throws TusProtocolException, IOException {
+        int attempt = 0;
+        while(true) {
+            long delay;
+            try {
+                retryPolicy.beforeAttempt(baseURL);
+                makeAttempt();
+                retryPolicy.onSuccess(baseURL);
+                return true;
+            } catch(RuntimeException e) {
+                retryPolicy.onAbandoned(baseURL);
+                throw e;
+            } catch(TusProtocolException e) {
+                delay = retryPolicy.onFailure(baseURL, attempt++, e);
+                if(delay < 0) {
+                    throw e;
+                }
+                metrics.retried(TusFailure.classify(e));
+            } catch(IOException e) {
+                delay = retryPolicy.onFailure(baseURL, attempt++, e);
+                if(delay < 0) {
+                    throw e;
+                }
+                metrics.retried(TusFailure.classify(e));
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch(InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Run {@link #makeAttempts()} on the given executor instead of the calling thread. Combined
+     * with {@link TusExecutors#newVirtualThreadExecutor()}, every upload and its retry delays
+     * occupy a virtual thread only.
+     *
+     * @param executor Executor to run the attempts on
+     * @return Future with the result of {@link #makeAttempts()}. Cancelling it with interruption
+     * stops the attempts the same way as interrupting the thread would.
+     */
+    public Future<Boolean> submit(ExecutorService executor) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return makeAttempts();
+            }
+        });
+    }
 
     protected abstract void makeAttempt() throws TusProtocolException, IOException;
 }
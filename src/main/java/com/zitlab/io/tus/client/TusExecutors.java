@@ -0,0 +1,77 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory for the executors uploads run on. On JDK 21 and later, uploads can run on virtual
+ * threads: a blocked {@link TusUploader#uploadChunk()} or a retry delay in
+ * {@link TusExecutor#makeAttempts()} then only costs a small heap-allocated stack instead of a
+ * platform thread. The virtual thread API is looked up at runtime, so the library keeps running
+ * on Java 8 and falls back to platform threads there.
+ *
+ * @author ksvraja
+ *
+ */
+public final class TusExecutors {
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private TusExecutors() {
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for every task. If virtual threads
+     * are not supported, an unbounded pool of daemon platform threads is returned instead.
+     *
+     * @return Executor running every task on its own (virtual) thread
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        if(NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch(ReflectiveOperationException e) {
+                // Fall through to platform threads.
+            }
+        }
+        return newPlatformThreadExecutor();
+    }
+
+    /**
+     * @return Unbounded pool of daemon platform threads which are reused between tasks
+     */
+    public static ExecutorService newPlatformThreadExecutor() {
+        return Executors.newCachedThreadPool(new TusThreadFactory("tus-upload"));
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
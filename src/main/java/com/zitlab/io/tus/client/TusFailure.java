@@ -0,0 +1,95 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * Classifies why an attempt failed, so retries can be handled per cause.
+ *
+ * @author ksvraja
+ *
+ */
+public enum TusFailure {
+    /** The server could not be reached: connection refused, no route, unknown host. */
+    CONNECT(true),
+    /** Connecting or waiting for data from the server timed out. */
+    TIMEOUT(true),
+    /** An established connection was reset or closed while the request was in progress. */
+    RESET(true),
+    /** The server answered with a status which should be retried, e.g. 5xx, 423 or 429. */
+    SERVER(true),
+    /** The server rejected a request because its data did not match the Upload-Checksum header. */
+    CHECKSUM(true),
+    /** The circuit breaker for the server is open, no request was sent. */
+    CIRCUIT_OPEN(true),
+    /** No pooled connection to the server became free in time, no request was sent. */
+    POOL_TIMEOUT(true),
+    /** A failure retrying cannot fix, e.g. a 4xx status, a TLS handshake error or cancellation. */
+    FATAL(false);
+
+    private final boolean retryable;
+
+    private TusFailure(boolean retryable) {
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public static TusFailure classify(Throwable error) {
+        if(error instanceof TusProtocolException) {
+            TusProtocolException protocolError = (TusProtocolException) error;
+            if(protocolError.getResponseCode() == 460) {
+                return CHECKSUM;
+            }
+            return protocolError.shouldRetry() ? SERVER : FATAL;
+        }
+        if(error instanceof TusCircuitOpenException) {
+            return CIRCUIT_OPEN;
+        }
+        if(error instanceof TusPoolTimeoutException) {
+            return POOL_TIMEOUT;
+        }
+        if(error instanceof SocketTimeoutException) {
+            return TIMEOUT;
+        }
+        if(error instanceof InterruptedIOException || error instanceof SSLHandshakeException) {
+            return FATAL;
+        }
+        if(error instanceof ConnectException || error instanceof NoRouteToHostException
+                || error instanceof UnknownHostException) {
+            return CONNECT;
+        }
+        if(error instanceof SocketException) {
+            return RESET;
+        }
+        if(error instanceof java.io.IOException) {
+            // Other I/O errors, e.g. an unexpected end of stream, behave like a reset connection.
+            return RESET;
+        }
+        return FATAL;
+    }
+}
@@ -20,110 +20,409 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * TusFileStream input to encapsulate RandamAccessFile
+ * TusFileStream input to encapsulate RandamAccessFile. Reads are positional reads on the
+ * file's {@link FileChannel}, so no shared file pointer is involved.
  * @author ksvraja
  *
  */
 public class TusFileStream {
+	private File file;
 	private RandomAccessFile raFile;
+	private volatile FileChannel channel;
+	private boolean closed;
+	private long start;
+	private long position;
 	private long size;
+	private boolean partial;
 	private String fingerprint;
+	private CompletableFuture<String> pendingFingerprint;
+	private boolean contentFingerprint;
 	private Map<String, String> metadata;
+	private String encodedMetadata;
 
 	//private long bytesRead;
 	
 	public TusFileStream(File file) throws FileNotFoundException, IOException {
+		this.file = file;
 		raFile = new RandomAccessFile(file, "r");
+		channel = raFile.getChannel();
 		size = raFile.length();
 		fingerprint = String.format("%s-%d", file.getAbsolutePath(), size);
 		metadata = new HashMap<String, String>();
 	    metadata.put("filename", file.getName());
 	}
+
+	/**
+	 * Creates a stream which is not backed by a file. Subclasses provide the data by
+	 * overriding {@link #readAt(ByteBuffer, long)}, {@link #getSize()} and {@link #close()}.
+	 *
+	 * @param fingerprint Key for the {@link TusURLStore}, or null for a random one, which
+	 * makes the upload impossible to resume after a restart
+	 */
+	protected TusFileStream(String fingerprint) {
+		this.fingerprint = fingerprint != null ? fingerprint : UUID.randomUUID().toString();
+		this.size = -1;
+		this.metadata = new HashMap<String, String>();
+	}
+
+	/**
+	 * Creates a stream over the byte range [start, start + length) of the given file. Such a
+	 * stream is uploaded as a partial upload of the tus Concatenation extension.
+	 */
+	private TusFileStream(File file, long start, long length, String fingerprint) throws FileNotFoundException {
+		this.file = file;
+		this.raFile = new RandomAccessFile(file, "r");
+		this.channel = raFile.getChannel();
+		this.start = start;
+		this.size = length;
+		this.partial = true;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Returns a new stream which reads the byte range [start, start + length) of this file with
+	 * its own file handle, so several parts can be read concurrently. The part's fingerprint is
+	 * derived from this stream's fingerprint and the range, so it can be resumed independently.
+	 *
+	 * @param start Offset of the first byte of the part within the file
+	 * @param length Number of bytes in the part
+	 * @return Stream to be uploaded as a partial upload
+	 * @throws IOException Thrown if the file cannot be opened again
+	 */
+	public TusFileStream slice(long start, long length) throws IOException {
+		if(file == null || isLengthDeferred()) {
+			throw new UnsupportedOperationException("only a file of known size can be split into parts");
+		}
+		if(start < 0 || length < 0 || start + length > size) {
+			throw new IllegalArgumentException("range " + start + "+" + length + " exceeds size " + size);
+		}
+		return new TusFileStream(file, this.start + start, length,
+				String.format("%s-part-%d-%d", getFingerprint(), start, length));
+	}
+
+	/**
+	 * Use a fingerprint computed from the file's content instead of its path and size. The
+	 * fingerprint is computed in the background, so hashing overlaps with creating and uploading
+	 * the upload. {@link #getFingerprint()} waits for it, which resuming has to do since it looks
+	 * the upload up by its fingerprint.
+	 *
+	 * @param contentFingerprint Computes and caches the content fingerprints
+	 * @throws IOException Thrown if the file's attributes cannot be read
+	 */
+	public void useContentFingerprint(TusContentFingerprint contentFingerprint) throws IOException {
+		if(partial) {
+			throw new IllegalStateException("the fingerprint of a part is derived from its file");
+		}
+		if(file == null) {
+			throw new UnsupportedOperationException("only the content of a file can be fingerprinted");
+		}
+		pendingFingerprint = contentFingerprint.compute(file);
+		this.contentFingerprint = true;
+	}
+
+	/**
+	 * @return true if the fingerprint changes whenever the content does: it was computed with
+	 * {@link #useContentFingerprint(TusContentFingerprint)} or set with {@link #setFingerprint(String)}.
+	 * Only then is the upload looked up in and recorded to the {@link TusCompletionIndex}, since
+	 * the default fingerprint of path and size stays the same when a file is edited in place.
+	 */
+	public boolean hasContentFingerprint() {
+		return contentFingerprint;
+	}
+
+	/**
+	 * @return Future completed with this stream's fingerprint. It is already completed unless a
+	 * content fingerprint is still being computed.
+	 */
+	public CompletableFuture<String> getFingerprintFuture() {
+		if(pendingFingerprint != null) {
+			return pendingFingerprint;
+		}
+		return CompletableFuture.completedFuture(fingerprint);
+	}
+
+	/**
+	 * @return true if this stream is one part of a file uploaded using the Concatenation extension.
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * @return true if the size is not known when the upload is created, so it is created with
+	 * Upload-Defer-Length and {@link #getSize()} returns -1 until the end has been read.
+	 */
+	public boolean isLengthDeferred() {
+		return false;
+	}
 	
 	public void seekTo(long pos) throws IOException {
-		raFile.seek(pos);
+		position = pos;
+	}
+
+	/**
+	 * Called by the uploader once the server has confirmed it stores everything before
+	 * offset, so that data is never read again. Sources which cannot read their data twice use
+	 * this to free what they keep for replaying failed requests; a file ignores it.
+	 *
+	 * @param offset Offset, relative to the start of this stream, confirmed by the server
+	 */
+	public void acknowledge(long offset) {
+	}
+
+	/**
+	 * Wait until data at pos can be read or the end of the stream is known. The uploader calls
+	 * this before it opens a request, so a source which is still being written does not keep a
+	 * request open while it has nothing to send. A file has all its data already.
+	 *
+	 * @param pos Offset, relative to the start of this stream, of the next read
+	 * @throws IOException Thrown if the source cannot be read
+	 */
+	public void awaitData(long pos) throws IOException {
+	}
+
+	/**
+	 * @return Number of bytes before the last read which can still be read again, or -1 if any
+	 * offset can, as for a file. An uploader sends no more than this in one request, so the data
+	 * of a failed request can always be sent again.
+	 */
+	public int getReplayCapacity() {
+		return -1;
+	}
+
+	/**
+	 * @return The offset, relative to the start of this stream, the next read starts at.
+	 */
+	public long getPosition() {
+		return position;
 	}
 	
 	public long getSize() {
         return size;
     }
 
+    /**
+     * @return The fingerprint. If a content fingerprint is still being computed, this waits for it.
+     * @throws UncheckedIOException Thrown if computing the content fingerprint failed
+     */
     public String getFingerprint() {
+        if(pendingFingerprint != null) {
+            try {
+                fingerprint = TusContentFingerprint.join(pendingFingerprint);
+            } catch(IOException e) {
+                throw new UncheckedIOException("computing the content fingerprint failed", e);
+            }
+            pendingFingerprint = null;
+        }
         return fingerprint;
     }
 
+    /**
+     * Sets the fingerprint. It is trusted to change whenever the content does, see
+     * {@link #hasContentFingerprint()}.
+     */
     public void setFingerprint(String fingerprint) {
         this.fingerprint = fingerprint;
+        this.pendingFingerprint = null;
+        this.contentFingerprint = true;
     }
     public void setMetadata(Map<String, String> metadata) {
         this.metadata = metadata;
+        this.encodedMetadata = null;
     }
 
+    /**
+     * Set one metadata entry, creating the map if there is none.
+     */
+    public void putMetadata(String key, String value) {
+        if(metadata == null) {
+            metadata = new HashMap<String, String>();
+        }
+        metadata.put(key, value);
+        encodedMetadata = null;
+    }
+
+    /**
+     * @return The metadata map. It may be changed by the caller, so the encoded header is
+     * computed again afterwards.
+     */
     public Map<String, String> getMetadata() {
+        encodedMetadata = null;
         return metadata;
     }
     
+    /**
+     * @return The metadata as the value of the Upload-Metadata header: the keys with their
+     * UTF-8 values in Base64, separated by commas. The value is computed once and reused until
+     * the metadata is set or handed out again.
+     */
     public String getEncodedMetadata() {
         if(metadata == null || metadata.size() == 0) {
             return "";
         }
-
-        String encoded = "";
-
-        boolean firstElement = true;
-        for(Map.Entry<String, String> entry : metadata.entrySet()) {
-            if(!firstElement) {
-                encoded += ",";
-            }
-            encoded += entry.getKey() + " " + base64Encode(entry.getValue().getBytes());
-
-            firstElement = false;
+        if(encodedMetadata != null) {
+            return encodedMetadata;
         }
 
-        return encoded;
-    }
-    
-    
-    static String base64Encode(byte[] in)       {
-        StringBuilder out = new StringBuilder((in.length * 4) / 3);
-        String codes = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=";
-
-        int b;
-        for (int i = 0; i < in.length; i += 3)  {
-            b = (in[i] & 0xFC) >> 2;
-            out.append(codes.charAt(b));
-            b = (in[i] & 0x03) << 4;
-            if (i + 1 < in.length)      {
-                b |= (in[i + 1] & 0xF0) >> 4;
-                out.append(codes.charAt(b));
-                b = (in[i + 1] & 0x0F) << 2;
-                if (i + 2 < in.length)  {
-                    b |= (in[i + 2] & 0xC0) >> 6;
-                    out.append(codes.charAt(b));
-                    b = in[i + 2] & 0x3F;
-                    out.append(codes.charAt(b));
-                } else  {
-                    out.append(codes.charAt(b));
-                    out.append('=');
-                }
-            } else      {
-                out.append(codes.charAt(b));
-                out.append("==");
+        Base64.Encoder encoder = Base64.getEncoder();
+        StringBuilder encoded = new StringBuilder();
+        for(Map.Entry<String, String> entry : metadata.entrySet()) {
+            if(encoded.length() > 0) {
+                encoded.append(',');
             }
+            encoded.append(entry.getKey()).append(' ')
+                    .append(encoder.encodeToString(entry.getValue().getBytes(StandardCharsets.UTF_8)));
         }
 
-        return out.toString();
+        encodedMetadata = encoded.toString();
+        return encodedMetadata;
     }
 
 	public int read(byte[] buffer) throws IOException {
-		return raFile.read(buffer);
+		return read(ByteBuffer.wrap(buffer));
+	}
+
+	/**
+	 * Reads bytes into the remaining space of the buffer using a positional read, so the data can
+	 * go straight into a direct buffer without an intermediate heap copy.
+	 *
+	 * @param buffer Buffer to read into
+	 * @return Number of bytes read, or -1 if the end of the stream was reached
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	public int read(ByteBuffer buffer) throws IOException {
+		int bytesRead = readAt(buffer, position);
+		if(bytesRead > 0) {
+			position += bytesRead;
+		}
+		return bytesRead;
+	}
+
+	/**
+	 * Reads bytes into the remaining space of the buffer, starting at the given offset relative
+	 * to the start of this stream. The stream's position is not changed, so this can be used
+	 * from another thread, e.g. to read ahead.
+	 *
+	 * @param buffer Buffer to read into
+	 * @param pos Offset to read from
+	 * @return Number of bytes read, 0 if a source still being written has no data at pos yet
+	 * (see {@link #awaitData(long)}), or -1 if the offset is at or behind the end of the stream
+	 * @throws IOException Thrown if the file cannot be read
+	 */
+	public int readAt(ByteBuffer buffer, long pos) throws IOException {
+		long remaining = size - pos;
+		if(remaining <= 0) {
+			return -1;
+		}
+
+		int limit = buffer.limit();
+		if(buffer.remaining() > remaining) {
+			buffer.limit(buffer.position() + (int) remaining);
+		}
+		try {
+			return channel().read(buffer, start + pos);
+		} finally {
+			buffer.limit(limit);
+		}
+	}
+
+	/**
+	 * Transfers up to count bytes directly from the file to the target channel using
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which avoids copying the
+	 * data through a user-space buffer where the target allows it. Streams which are not a
+	 * plain file copy through a small buffer instead.
+	 *
+	 * @param target Channel to write to
+	 * @param count Maximum number of bytes to transfer
+	 * @return Number of bytes transferred, or -1 if the end of the stream was reached
+	 * @throws IOException Thrown if reading the file or writing to the target fails
+	 */
+	public long transferTo(WritableByteChannel target, long count) throws IOException {
+		if(file == null || isLengthDeferred()) {
+			return copyTo(target, count);
+		}
+
+		long remaining = size - position;
+		if(remaining <= 0) {
+			return -1;
+		}
+
+		long transferred = channel().transferTo(start + position, Math.min(count, remaining), target);
+		position += transferred;
+		return transferred;
+	}
+
+	private long copyTo(WritableByteChannel target, long count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		long transferred = 0;
+		while(transferred < count) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), count - transferred));
+			int bytesRead = read(buffer);
+			if(bytesRead == -1) {
+				return transferred == 0 ? -1 : transferred;
+			}
+			if(bytesRead == 0) {
+				// No data yet, see awaitData().
+				return transferred;
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			transferred += bytesRead;
+		}
+		return transferred;
+	}
+
+	public synchronized void close() throws IOException {
+		closed = true;
+		if(raFile != null) {
+			raFile.close();
+		}
+	}
+
+	/**
+	 * Close the file until it is read again, so e.g. a paused upload holds no file handle. A
+	 * stream not backed by a file is left open.
+	 */
+	synchronized void suspend() throws IOException {
+		if(file != null && raFile != null) {
+			raFile.close();
+			raFile = null;
+			channel = null;
+		}
 	}
 
-	public void close() throws IOException {
-		raFile.close();
+	/**
+	 * @return The file's channel, opened again if the stream has been suspended
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel current = channel;
+		if(current != null) {
+			return current;
+		}
+		synchronized(this) {
+			if(channel == null) {
+				if(closed || file == null) {
+					throw new ClosedChannelException();
+				}
+				raFile = new RandomAccessFile(file, "r");
+				channel = raFile.getChannel();
+			}
+			return channel;
+		}
 	}
 }
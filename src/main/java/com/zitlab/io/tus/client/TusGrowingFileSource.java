@@ -0,0 +1,142 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Uploads a file which is still being written, e.g. a log, following it like "tail -f". Once
+ * everything written so far has been sent, the request is ended and the next one is only sent
+ * when the file has grown, so no request is held open while the writer is idle. This goes on
+ * until the writer is done, which is signalled with {@link #setComplete()} or detected when the
+ * file has not grown for the idle timeout. Since
+ * the data stays on disk, failed requests are replayed from the file and no replay buffer is
+ * needed.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusGrowingFileSource extends TusFileStream {
+    private final FileChannel channel;
+    private long pollMillis = 100;
+    private long idleTimeoutMillis;
+    private volatile boolean complete;
+    private volatile long finalSize = -1;
+    private long lastGrowth = System.currentTimeMillis();
+    private long lastSize;
+
+    public TusGrowingFileSource(File file) throws IOException {
+        super(file.getAbsolutePath() + "-growing");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        putMetadata("filename", file.getName());
+    }
+
+    /**
+     * Sets after how long without the file growing it is regarded as complete. The default,
+     * 0, waits for {@link #setComplete()}.
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how often the file is checked for new data. The default is 100ms.
+     */
+    public void setPollInterval(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Signal that the file will not grow any further. The upload finishes once everything
+     * written until now has been sent.
+     */
+    public void setComplete() throws IOException {
+        finalSize = channel.size();
+        complete = true;
+    }
+
+    @Override
+    public boolean isLengthDeferred() {
+        return true;
+    }
+
+    /**
+     * @return -1 until the file is complete, its final size afterwards
+     */
+    @Override
+    public long getSize() {
+        return finalSize;
+    }
+
+    @Override
+    public int readAt(ByteBuffer buffer, long pos) throws IOException {
+        long available = (complete ? finalSize : channel.size()) - pos;
+        if(available > 0) {
+            int limit = buffer.limit();
+            if(buffer.remaining() > available) {
+                buffer.limit(buffer.position() + (int) available);
+            }
+            try {
+                return channel.read(buffer, pos);
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+        return complete ? -1 : 0;
+    }
+
+    /**
+     * Wait until the file has grown beyond pos, or is complete.
+     */
+    @Override
+    public void awaitData(long pos) throws IOException {
+        while(!complete && channel.size() <= pos) {
+            awaitGrowth();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void awaitGrowth() throws IOException {
+        long now = System.currentTimeMillis();
+        long size = channel.size();
+        if(size != lastSize) {
+            lastSize = size;
+            lastGrowth = now;
+            return;
+        }
+        if(idleTimeoutMillis > 0 && now - lastGrowth >= idleTimeoutMillis) {
+            setComplete();
+            return;
+        }
+
+        try {
+            Thread.sleep(pollMillis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the file to grow");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+/**
+ * Receives measurements from {@link TusClient}, {@link TusUploader} and the retrying executors.
+ * All methods have an empty default implementation, so an implementation only overrides what
+ * it is interested in. They are called on the uploading threads, so implementations must be
+ * thread safe and should not block or allocate. {@link TusMetricsRecorder} aggregates all of
+ * them and exposes the results over JMX.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusMetrics {
+    /** Metrics which discard everything, used by default. */
+    public static final TusMetrics NONE = new TusMetrics() {
+    };
+
+    /**
+     * A request has been answered by the server.
+     *
+     * @param method "POST", "HEAD", "PATCH" or "DELETE"
+     * @param nanos Time from sending the request until the response status was received
+     */
+    public default void requestCompleted(String method, long nanos) {
+    }
+
+    /**
+     * Upload data has been written to a request body.
+     */
+    public default void bytesSent(long bytes) {
+    }
+
+    /**
+     * The server had not stored data which had already been sent, e.g. after a broken
+     * connection, so it has to be sent again.
+     */
+    public default void bytesResent(long bytes) {
+    }
+
+    /**
+     * A failed attempt or request is retried.
+     */
+    public default void retried(TusFailure cause) {
+    }
+
+    /**
+     * A PATCH request has been disconnected since it was stalled, see
+     * {@link TusClient#setWriteTimeout(int)} and {@link TusClient#setStallDetection(long, int)}.
+     */
+    public default void requestStalled() {
+    }
+
+    /**
+     * An upload has been confirmed complete by the server.
+     *
+     * @param bytes Number of bytes sent by the uploader, including data sent again
+     * @param nanos Time from creating the uploader until the upload was finished
+     */
+    public default void uploadCompleted(long bytes, long nanos) {
+    }
+}
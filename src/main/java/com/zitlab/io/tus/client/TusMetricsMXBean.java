@@ -0,0 +1,83 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link TusMetricsRecorder}, see
+ * {@link TusMetricsRecorder#registerMBean(String)}. Latencies are in milliseconds.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusMetricsMXBean {
+    public long getBytesSent();
+
+    public long getBytesResent();
+
+    /**
+     * @return Bytes sent per second, averaged exponentially over about the last minute
+     */
+    public double getBytesPerSecond();
+
+    /**
+     * @return Bytes sent per second since the recorder was created
+     */
+    public double getMeanBytesPerSecond();
+
+    public long getUploadsCompleted();
+
+    /**
+     * @return Median throughput of a single upload in bytes per second
+     */
+    public long getUploadBytesPerSecondP50();
+
+    /**
+     * @return Number of retries by {@link TusFailure} name
+     */
+    public Map<String, Long> getRetryCounts();
+
+    /**
+     * @return Number of PATCH requests disconnected since they were stalled
+     */
+    public long getStalledRequests();
+
+    public long getPostRequests();
+
+    public double getPostLatencyP50();
+
+    public double getPostLatencyP99();
+
+    public long getHeadRequests();
+
+    public double getHeadLatencyP50();
+
+    public double getHeadLatencyP99();
+
+    public long getPatchRequests();
+
+    public double getPatchLatencyP50();
+
+    public double getPatchLatencyP99();
+
+    public long getDeleteRequests();
+
+    public double getDeleteLatencyP50();
+
+    public double getDeleteLatencyP99();
+}
@@ -0,0 +1,296 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link TusMetrics} which aggregates all measurements in memory: counters, a one minute
+ * moving average of the throughput and a {@link TusLatencyHistogram} per request method. The
+ * results can be read with the getters, e.g. to bind them to gauges of a metrics library, or
+ * over JMX after {@link #registerMBean(String)}.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusMetricsRecorder implements TusMetrics, TusMetricsMXBean {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+    private static final TusFailure[] FAILURES = TusFailure.values();
+
+    private final TusLatencyHistogram postLatency = new TusLatencyHistogram();
+    private final TusLatencyHistogram headLatency = new TusLatencyHistogram();
+    private final TusLatencyHistogram patchLatency = new TusLatencyHistogram();
+    private final TusLatencyHistogram deleteLatency = new TusLatencyHistogram();
+    private final TusLatencyHistogram uploadThroughput = new TusLatencyHistogram();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesResent = new LongAdder();
+    private final AtomicLongArray retries = new AtomicLongArray(FAILURES.length);
+    private final LongAdder stalls = new LongAdder();
+
+    private final long created = System.nanoTime();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(created);
+    private volatile double rate;
+    private volatile boolean rateInitialized;
+
+    private ObjectName objectName;
+
+    @Override
+    public void requestCompleted(String method, long nanos) {
+        TusLatencyHistogram histogram = getLatencyHistogram(method);
+        if(histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    @Override
+    public void bytesSent(long bytes) {
+        tickIfNecessary();
+        bytesSent.add(bytes);
+        uncounted.add(bytes);
+    }
+
+    @Override
+    public void bytesResent(long bytes) {
+        bytesResent.add(bytes);
+    }
+
+    @Override
+    public void retried(TusFailure cause) {
+        retries.incrementAndGet(cause.ordinal());
+    }
+
+    @Override
+    public void requestStalled() {
+        stalls.increment();
+    }
+
+    @Override
+    public void uploadCompleted(long bytes, long nanos) {
+        if(nanos > 0) {
+            uploadThroughput.record((long) (bytes * 1e9 / nanos));
+        }
+    }
+
+    /**
+     * @param method "POST", "HEAD", "PATCH" or "DELETE"
+     * @return Histogram of the request latencies in nanoseconds, or null for other methods
+     */
+    public TusLatencyHistogram getLatencyHistogram(String method) {
+        if("PATCH".equals(method)) {
+            return patchLatency;
+        }
+        if("POST".equals(method)) {
+            return postLatency;
+        }
+        if("HEAD".equals(method)) {
+            return headLatency;
+        }
+        if("DELETE".equals(method)) {
+            return deleteLatency;
+        }
+        return null;
+    }
+
+    /**
+     * @return Histogram of the throughput of single uploads in bytes per second
+     */
+    public TusLatencyHistogram getUploadThroughputHistogram() {
+        return uploadThroughput;
+    }
+
+    public long getRetryCount(TusFailure cause) {
+        return retries.get(cause.ordinal());
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesResent() {
+        return bytesResent.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        tickIfNecessary();
+        return rate * TimeUnit.SECONDS.toNanos(1) / TICK_NANOS;
+    }
+
+    @Override
+    public double getMeanBytesPerSecond() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed <= 0 ? 0 : bytesSent.sum() * 1e9 / elapsed;
+    }
+
+    @Override
+    public long getUploadsCompleted() {
+        return uploadThroughput.getCount();
+    }
+
+    @Override
+    public long getUploadBytesPerSecondP50() {
+        return uploadThroughput.getValueAtPercentile(50);
+    }
+
+    @Override
+    public Map<String, Long> getRetryCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for(TusFailure failure : FAILURES) {
+            counts.put(failure.name(), retries.get(failure.ordinal()));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getStalledRequests() {
+        return stalls.sum();
+    }
+
+    @Override
+    public long getPostRequests() {
+        return postLatency.getCount();
+    }
+
+    @Override
+    public double getPostLatencyP50() {
+        return millis(postLatency, 50);
+    }
+
+    @Override
+    public double getPostLatencyP99() {
+        return millis(postLatency, 99);
+    }
+
+    @Override
+    public long getHeadRequests() {
+        return headLatency.getCount();
+    }
+
+    @Override
+    public double getHeadLatencyP50() {
+        return millis(headLatency, 50);
+    }
+
+    @Override
+    public double getHeadLatencyP99() {
+        return millis(headLatency, 99);
+    }
+
+    @Override
+    public long getPatchRequests() {
+        return patchLatency.getCount();
+    }
+
+    @Override
+    public double getPatchLatencyP50() {
+        return millis(patchLatency, 50);
+    }
+
+    @Override
+    public double getPatchLatencyP99() {
+        return millis(patchLatency, 99);
+    }
+
+    @Override
+    public long getDeleteRequests() {
+        return deleteLatency.getCount();
+    }
+
+    @Override
+    public double getDeleteLatencyP50() {
+        return millis(deleteLatency, 50);
+    }
+
+    @Override
+    public double getDeleteLatencyP99() {
+        return millis(deleteLatency, 99);
+    }
+
+    /**
+     * Register this recorder with the platform MBean server under
+     * "com.zitlab.io.tus.client:type=TusMetrics,name=" + name.
+     *
+     * @return The name the recorder has been registered under
+     * @throws JMException Thrown if the name is invalid or already taken
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.zitlab.io.tus.client:type=TusMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove the registration made with {@link #registerMBean(String)}, if any.
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if(objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    private static double millis(TusLatencyHistogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    /**
+     * Fold the bytes sent since the last tick into the moving average, once per elapsed tick.
+     * Only the thread which advances the tick updates the average.
+     */
+    private void tickIfNecessary() {
+        long last = lastTick.get();
+        long now = System.nanoTime();
+        long age = now - last;
+        if(age < TICK_NANOS) {
+            return;
+        }
+        long next = now - age % TICK_NANOS;
+        if(!lastTick.compareAndSet(last, next)) {
+            return;
+        }
+
+        // After a long idle period the average has decayed to nothing anyway.
+        long ticks = Math.min(age / TICK_NANOS, 1000);
+        for(long i = 0; i < ticks; i++) {
+            long count = i == 0 ? uncounted.sumThenReset() : 0;
+            if(rateInitialized) {
+                rate += ALPHA * (count - rate);
+            } else {
+                rate = count;
+                rateInitialized = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a single file over several connections using the tus Concatenation extension. The
+ * file is split into byte ranges, each range is uploaded as a partial upload by its own
+ * {@link TusUploader} on its own thread, and a final upload stitches the parts together.
+ *
+ * If resuming is enabled on the client, the URL of every part is kept in the
+ * {@link TusURLStore} under the part's fingerprint, so after a crash only the unfinished
+ * parts are sent again.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusParallelUploader {
+    private TusClient client;
+    private TusFileStream upload;
+    private int parallelism = 4;
+    private long minPartSize = 5 * 1024 * 1024;
+    private int chunkSize = 2 * 1024 * 1024;
+    private int[] delays;
+    private TusRetryPolicy retryPolicy;
+    private ExecutorService executor;
+
+    public TusParallelUploader(TusClient client, TusFileStream upload) {
+        this.client = client;
+        this.upload = upload;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum number of parts, and so of concurrent connections, used for the upload.
+     *
+     * @param parallelism Number of parts, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public long getMinPartSize() {
+        return minPartSize;
+    }
+
+    /**
+     * Sets the smallest part size. Files smaller than twice this size are uploaded as fewer parts
+     * than the configured parallelism. The default is 5 MiB.
+     *
+     * @param minPartSize Minimum number of bytes in a part
+     */
+    public void setMinPartSize(long minPartSize) {
+        this.minPartSize = minPartSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @see TusUploader#setChunkSize(int)
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int[] getDelays() {
+        return delays;
+    }
+
+    /**
+     * Sets the retry delays used for every part.
+     *
+     * @see TusExecutor#setDelays(int[])
+     */
+    public void setDelays(int[] delays) {
+        this.delays = delays;
+    }
+
+    public TusRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy used for every part. Share one policy between the parts, so its
+     * circuit breaker and budget see the failures of all of them.
+     *
+     * @see TusExecutor#setRetryPolicy(TusRetryPolicy, URL)
+     */
+    public void setRetryPolicy(TusRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the executor the parts are uploaded on. If none is set, a fixed pool with one thread
+     * per part is created and shut down for every call to {@link #upload()}.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Upload all parts in parallel and concatenate them once every part is finished. The file
+     * and its parts are closed when this returns, also after a failure; calling it again
+     * resumes the unfinished parts if resuming is enabled.
+     *
+     * @return URL of the final upload
+     * @throws TusProtocolException Thrown if the remote server sent an unexpected response for
+     * one of the parts or for the final upload
+     * @throws IOException Thrown if an exception occurs while reading the file or issuing a request
+     */
+    public URL upload() throws TusProtocolException, IOException {
+        List<TusFileStream> parts = new ArrayList<TusFileStream>();
+        try {
+            split(parts);
+            return upload(parts);
+        } finally {
+            // Every part holds its own file handle, which finishing a part releases, but a
+            // failed or unstarted part does not.
+            for(TusFileStream part : parts) {
+                try {
+                    part.close();
+                } catch(IOException e) {
+                    // Nothing is read from the part anymore.
+                }
+            }
+            try {
+                upload.close();
+            } catch(IOException e) {
+                // Nothing is read from the file anymore.
+            }
+        }
+    }
+
+    private URL upload(List<TusFileStream> parts) throws TusProtocolException, IOException {
+        ExecutorService pool = executor;
+        if(pool == null) {
+            pool = Executors.newFixedThreadPool(parts.size());
+        }
+
+        List<URL> partialURLs = new ArrayList<URL>();
+        List<Future<URL>> futures = new ArrayList<Future<URL>>();
+        try {
+            for(final TusFileStream part : parts) {
+                futures.add(pool.submit(new Callable<URL>() {
+                    @Override
+                    public URL call() throws Exception {
+                        return uploadPart(part);
+                    }
+                }));
+            }
+
+            for(Future<URL> future : futures) {
+                partialURLs.add(future.get());
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("parallel upload interrupted");
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof TusProtocolException) {
+                throw (TusProtocolException) cause;
+            }
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for(Future<URL> future : futures) {
+                future.cancel(true);
+            }
+            if(executor == null) {
+                pool.shutdownNow();
+            }
+        }
+
+        URL url = client.concatenateUploads(upload, partialURLs);
+
+        if(client.isResumingEnabled()) {
+            for(TusFileStream part : parts) {
+                client.getUrlStore().remove(part.getFingerprint());
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Open the parts, adding each to the list as soon as it is open so it is closed even if a
+     * later one cannot be opened.
+     */
+    private void split(List<TusFileStream> parts) throws IOException {
+        long size = upload.getSize();
+        int count = (int) Math.max(1, Math.min(parallelism, size / Math.max(1, minPartSize)));
+        long partSize = size / count;
+
+        for(int i = 0; i < count; i++) {
+            long start = i * partSize;
+            long length = (i == count - 1) ? size - start : partSize;
+            parts.add(upload.slice(start, length));
+        }
+    }
+
+    private URL uploadPart(final TusFileStream part) throws TusProtocolException, IOException {
+        final URL[] partURL = new URL[1];
+        TusExecutor partExecutor = new TusExecutor() {
+            @Override
+            protected void makeAttempt() throws TusProtocolException, IOException {
+                TusUploader uploader = client.resumeOrCreateUpload(part);
+                if(client.getAdaptiveSizing() == null) {
+                    uploader.setChunkSize(chunkSize);
+                }
+                while(uploader.uploadChunk() > -1) {
+                    if(Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("part upload interrupted");
+                    }
+                }
+                uploader.finish();
+                partURL[0] = uploader.getUploadURL();
+            }
+        };
+        if(delays != null) {
+            partExecutor.setDelays(delays);
+        }
+        if(retryPolicy != null) {
+            partExecutor.setRetryPolicy(retryPolicy, client.getBaseURL());
+        }
+        partExecutor.setMetrics(client.getMetrics());
+
+        if(!partExecutor.makeAttempts()) {
+            throw new InterruptedIOException("part upload interrupted");
+        }
+        return partURL[0];
+    }
+}
@@ -0,0 +1,35 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown if no pooled connection to a server became free within the
+ * {@link PooledHttpTransport#setAcquireTimeout(long, java.util.concurrent.TimeUnit) acquire timeout}.
+ * No request has been sent, so it says nothing about the server.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusPoolTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public TusPoolTimeoutException(String target, long timeoutMillis) {
+        super("no connection to " + target + " became free within " + timeoutMillis + " ms");
+    }
+}
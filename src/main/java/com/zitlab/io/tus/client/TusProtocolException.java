@@ -17,21 +17,23 @@
 package com.zitlab.io.tus.client;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 public class TusProtocolException extends Exception{
-	private HttpURLConnection connection;
+	private TusConnection connection;
 
     public TusProtocolException(String message) {
         super(message);
     }
 
-    public TusProtocolException(String message, HttpURLConnection connection) {
+    public TusProtocolException(String message, TusConnection connection) {
         super(message);
         this.connection = connection;
     }
 
-    public HttpURLConnection getCausingConnection() {
+    public TusConnection getCausingConnection() {
         return connection;
     }
 
@@ -43,10 +45,54 @@ public class TusProtocolException extends Exception{
         try {
             int responseCode = connection.getResponseCode();
 
-            // 5XX and 423 Resource Locked status codes should be retried.
-            return (responseCode >= 500 && responseCode < 600) || responseCode == 423;
+            // 5XX, 423 Resource Locked, 429 Too Many Requests and 460 Checksum Mismatch status
+            // codes should be retried.
+            return (responseCode >= 500 && responseCode < 600) || responseCode == 423 || responseCode == 429
+                    || responseCode == 460;
         } catch(IOException e) {
             return false;
         }
     }
+
+    /**
+     * @return Status code of the response which caused this exception, or -1 if there is none
+     */
+    public int getResponseCode() {
+        if(connection == null) {
+            return -1;
+        }
+        try {
+            return connection.getResponseCode();
+        } catch(IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return Delay requested by the server's Retry-After header in milliseconds, or -1 if the
+     * response had no valid Retry-After header
+     */
+    public long getRetryAfterMillis() {
+        if(connection == null) {
+            return -1;
+        }
+
+        String value = connection.getHeaderField("Retry-After");
+        if(value == null || value.isEmpty()) {
+            return -1;
+        }
+
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch(NumberFormatException e) {
+            // Not a number of seconds, so it should be an HTTP date.
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch(DateTimeParseException e) {
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,174 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the number of bytes per second written by all uploads sharing it. It
+ * can be set on the client for all uploads ({@link TusClient#setRateLimiter(TusRateLimiter)}),
+ * per host ({@link TusClient#setHostRateLimit(long)}) or on a single uploader
+ * ({@link TusUploader#setRateLimiter(TusRateLimiter)}).
+ *
+ * The bucket is kept as the point in time until which its tokens are used up, so taking
+ * tokens is one compare-and-set and many writers never block each other on a lock. Writers
+ * reserve tokens in the order they ask for them and then sleep until their reservation is due,
+ * which shares the rate among them like a round robin. The rate can be changed at any time and
+ * applies to requests already being sent: the tokens reserved ahead are rescaled to the new
+ * rate, and waiting writers check for a new rate at least every 100 ms.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusRateLimiter {
+    private static final long DEFAULT_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLong emptyUntil = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+    private volatile long burst;
+
+    /**
+     * @param bytesPerSecond Average number of bytes allowed per second, 0 for no limit
+     */
+    public TusRateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, 0);
+    }
+
+    /**
+     * @param bytesPerSecond Average number of bytes allowed per second, 0 for no limit
+     * @param burst Number of bytes which may be written at once after the bucket was idle, 0
+     * for a tenth of a second's worth
+     */
+    public TusRateLimiter(long bytesPerSecond, long burst) {
+        setRate(bytesPerSecond);
+        setBurst(burst);
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Changes the rate. The bytes already reserved ahead of time are rescaled to the new rate,
+     * so raising it also lets the writers already waiting continue sooner.
+     *
+     * @param bytesPerSecond Average number of bytes allowed per second, 0 for no limit
+     */
+    public void setRate(long bytesPerSecond) {
+        if(bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+        long old = this.bytesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        if(old <= 0 || old == bytesPerSecond) {
+            return;
+        }
+        while(true) {
+            long now = System.nanoTime();
+            long current = emptyUntil.get();
+            if(current - now <= 0) {
+                return;
+            }
+            long next = now + rescale(current - now, old, bytesPerSecond);
+            if(emptyUntil.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Time the given time spent at the old rate takes at the new rate, 0 without limit
+     */
+    private static long rescale(long nanos, long oldRate, long newRate) {
+        return newRate <= 0 ? 0 : (long) (nanos * ((double) oldRate / newRate));
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public void setBurst(long burst) {
+        if(burst < 0) {
+            throw new IllegalArgumentException("burst must not be negative");
+        }
+        this.burst = burst;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes, waiting until they are available.
+     *
+     * @param bytes Number of bytes about to be written
+     * @throws InterruptedIOException Thrown if the thread is interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long rate = bytesPerSecond;
+        long wait = reserve(bytes, rate);
+        if(wait <= 0) {
+            return;
+        }
+        long due = System.nanoTime() + wait;
+        try {
+            while(true) {
+                long now = System.nanoTime();
+                long current = bytesPerSecond;
+                if(current != rate) {
+                    // Rescaled like the reservations in setRate().
+                    due = now + rescale(due - now, rate, current);
+                    rate = current;
+                }
+                long remaining = due - now;
+                if(remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, MAX_SLEEP_NANOS));
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the rate limit");
+        }
+    }
+
+    /**
+     * Takes tokens for the given number of bytes without waiting. The tokens may be taken
+     * from the future, so the caller has to wait before writing.
+     *
+     * @param rate Rate the tokens are taken at
+     * @return Nanoseconds to wait before the bytes may be written
+     */
+    private long reserve(int bytes, long rate) {
+        if(rate <= 0) {
+            return 0;
+        }
+        double nanosPerByte = 1e9 / rate;
+        long burstNanos = burst > 0 ? (long) (burst * nanosPerByte) : DEFAULT_BURST_NANOS;
+        long cost = (long) (bytes * nanosPerByte);
+
+        while(true) {
+            long now = System.nanoTime();
+            long current = emptyUntil.get();
+            // A bucket idle for longer than the burst is full, but not fuller.
+            long start = current - (now - burstNanos) < 0 ? now - burstNanos : current;
+            long next = start + cost;
+            if(emptyUntil.compareAndSet(current, next)) {
+                return next - now;
+            }
+        }
+    }
+}
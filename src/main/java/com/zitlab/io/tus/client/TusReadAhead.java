@@ -0,0 +1,184 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads the chunks of a {@link TusFileStream} on a background thread while the uploader sends
+ * the previous ones, so disk reads and network writes overlap. At most a fixed number of read
+ * chunks is buffered; the buffers come from a {@link TusBufferPool}.
+ *
+ * @author ksvraja
+ *
+ */
+class TusReadAhead implements Runnable {
+    private static final ExecutorService defaultExecutor = TusExecutors.newPlatformThreadExecutor();
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    private final TusFileStream input;
+    private final TusBufferPool pool;
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>();
+    // Bounds the chunks read ahead. The end and failure markers need no slot, so they can always
+    // be queued and take() can block until something arrives.
+    private final Semaphore slots;
+    private volatile int chunkSize;
+    private volatile boolean closed;
+    private volatile IOException error;
+    private long position;
+    private boolean ended;
+
+    /**
+     * @param input Stream to read from
+     * @param position Offset of the first chunk to read
+     * @param depth Maximum number of chunks read ahead
+     */
+    TusReadAhead(TusFileStream input, long position, int depth, int chunkSize, TusBufferPool pool) {
+        this.input = input;
+        this.position = position;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+        this.slots = new Semaphore(depth);
+    }
+
+    static Executor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = null;
+        try {
+            while(true) {
+                slots.acquire();
+                if(closed) {
+                    return;
+                }
+                buffer = pool.acquire(chunkSize);
+                int bytesRead = input.readAt(buffer, position);
+                if(bytesRead < 0) {
+                    pool.release(buffer);
+                    offer(END);
+                    return;
+                }
+                position += bytesRead;
+                buffer.flip();
+                offer(buffer);
+                buffer = null;
+                if(bytesRead == 0) {
+                    // The empty chunk makes the uploader end its request while the source has
+                    // no data.
+                    input.awaitData(position);
+                }
+            }
+        } catch(IOException e) {
+            fail(buffer, e);
+        } catch(UncheckedIOException e) {
+            fail(buffer, e.getCause());
+        } catch(InterruptedException e) {
+            fail(buffer, new InterruptedIOException("read-ahead interrupted"));
+        } catch(Throwable e) {
+            // E.g. running out of direct buffer memory: the uploader must not wait forever.
+            fail(buffer, new IOException("read-ahead failed", e));
+        }
+    }
+
+    private void fail(ByteBuffer buffer, IOException e) {
+        if(buffer != null) {
+            pool.release(buffer);
+        }
+        error = e;
+        offer(FAILED);
+    }
+
+    private void offer(ByteBuffer buffer) {
+        queue.add(buffer);
+        if(closed) {
+            drain();
+        }
+    }
+
+    /**
+     * Take the next chunk. It has to be handed back to the pool by the caller.
+     *
+     * @return Buffer holding the next chunk, or null at the end of the stream
+     * @throws IOException Thrown if reading the stream failed
+     */
+    ByteBuffer take() throws IOException {
+        if(ended) {
+            if(error != null) {
+                throw error;
+            }
+            return null;
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = queue.take();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for read-ahead");
+        }
+
+        if(buffer == END) {
+            ended = true;
+            return null;
+        }
+        if(buffer == FAILED) {
+            ended = true;
+            throw error;
+        }
+        slots.release();
+        return buffer;
+    }
+
+    /**
+     * Stop reading ahead and hand all buffered chunks back to the pool.
+     */
+    void close() {
+        closed = true;
+        // Wake the reader if it waits for a slot.
+        slots.release();
+        drain();
+    }
+
+    private void drain() {
+        ByteBuffer buffer;
+        while((buffer = queue.poll()) != null) {
+            if(buffer != END && buffer != FAILED) {
+                pool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+/**
+ * Token bucket limiting the rate of retries across all uploads sharing it. Each retry takes a
+ * token; tokens are refilled at a fixed rate up to a maximum. When a server fails for everyone,
+ * the bucket empties and further failures are not retried, instead of all uploads hammering the
+ * server in step.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusRetryBudget {
+    private final double capacity;
+    private final double refillPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity Maximum number of retries allowed in a burst
+     * @param refillPerSecond Number of retries allowed per second on average
+     */
+    public TusRetryBudget(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.refillPerSecond = refillPerSecond;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return true if a token was available and has been taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if(tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    public synchronized double getAvailableTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * refillPerSecond);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,63 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Decides whether and when a failed upload attempt is retried. Used by {@link TusExecutor} and
+ * {@link TusUploadManager} instead of their fixed delays when set. One policy instance can be
+ * shared by all uploads, so it can limit retries across all of them.
+ * <p>
+ * The outcome of an attempt is reported on the thread which called
+ * {@link #beforeAttempt(URL)} for it, so a policy can tell concurrent attempts apart.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusRetryPolicy {
+    /**
+     * Called before every attempt against the server at baseURL.
+     *
+     * @throws TusCircuitOpenException Thrown if no request should be sent to the server now
+     */
+    public void beforeAttempt(URL baseURL) throws TusCircuitOpenException;
+
+    /**
+     * Called after a failed attempt.
+     *
+     * @param baseURL URL of the server the attempt was made against
+     * @param attempt Number of failed attempts before this one, starting at 0
+     * @param error Cause of the failure
+     * @return Delay in milliseconds before the next attempt, or -1 to give up and throw error
+     */
+    public long onFailure(URL baseURL, int attempt, Exception error);
+
+    /**
+     * Called after a successful attempt.
+     */
+    public void onSuccess(URL baseURL);
+
+    /**
+     * Called instead of {@link #onSuccess(URL)} or {@link #onFailure(URL, int, Exception)} when an
+     * attempt let through by {@link #beforeAttempt(URL)} ended without telling anything about the
+     * server, e.g. because it was paused or cancelled.
+     */
+    public default void onAbandoned(URL baseURL) {
+    }
+}
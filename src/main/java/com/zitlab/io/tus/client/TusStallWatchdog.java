@@ -0,0 +1,223 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the bodies of a client's PATCH requests while they are written and disconnects a
+ * request whose write blocks for longer than {@link TusClient#getWriteTimeout()}, or which sends
+ * less than {@link TusClient#getStallMinBytesPerSecond()} over
+ * {@link TusClient#getStallSeconds()} spent writing. The uploader writing the request then fails
+ * with a {@link java.net.SocketTimeoutException} and recovers from the server's offset.
+ * <p>
+ * Only the time spent inside writes counts, so an uploader waiting for a rate limit, for its
+ * source or for its caller is not taken for a stalled request.
+ * <p>
+ * All clients share one background thread, which only checks a client while it has requests
+ * being written.
+ *
+ * @author ksvraja
+ *
+ */
+class TusStallWatchdog {
+    private static final long CHECK_INTERVAL_MILLIS = 250;
+    private static final ScheduledExecutorService TIMER =
+            Executors.newSingleThreadScheduledExecutor(new TusThreadFactory("tus-watchdog"));
+
+    private final TusClient client;
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+    private ScheduledFuture<?> checker;
+
+    TusStallWatchdog(TusClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Start watching a request body until it is closed or the watch is cancelled.
+     *
+     * @return The body wrapped so the watchdog sees its progress, or null if neither a write
+     * timeout nor stall detection is set
+     */
+    Watch watch(OutputStream body, TusUploader uploader, TusConnection connection) {
+        if(client.getWriteTimeout() <= 0 && client.getStallMinBytesPerSecond() <= 0) {
+            return null;
+        }
+        Watch watch = new Watch(body, uploader, connection);
+        watches.add(watch);
+        startChecker();
+        return watch;
+    }
+
+    private synchronized void startChecker() {
+        if(checker != null) {
+            return;
+        }
+        checker = TIMER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking once nothing is watched, so an idle client is not referenced by the timer.
+     */
+    private synchronized void stopCheckerIfIdle() {
+        if(checker != null && watches.isEmpty()) {
+            checker.cancel(false);
+            checker = null;
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        long writeTimeout = TimeUnit.MILLISECONDS.toNanos(client.getWriteTimeout());
+        long minBytesPerSecond = client.getStallMinBytesPerSecond();
+        long window = TimeUnit.SECONDS.toNanos(client.getStallSeconds());
+        for(Watch watch : watches) {
+            String reason = watch.check(now, writeTimeout, minBytesPerSecond, window);
+            if(reason == null) {
+                continue;
+            }
+            watches.remove(watch);
+            client.getMetrics().requestStalled();
+            try {
+                watch.uploader.stall(watch.connection, reason);
+            } catch(RuntimeException e) {
+                // The timer must keep running for the other requests.
+            }
+        }
+        stopCheckerIfIdle();
+    }
+
+    /**
+     * Request body counting what is written and how long writing took.
+     */
+    class Watch extends FilterOutputStream {
+        private final TusUploader uploader;
+        private final TusConnection connection;
+        private volatile long written;
+        private volatile long writeStarted;
+        private volatile boolean writing;
+        private volatile long writeNanos;
+        // Only used by the timer thread.
+        private long windowWriteNanos;
+        private long windowWritten;
+
+        Watch(OutputStream out, TusUploader uploader, TusConnection connection) {
+            super(out);
+            this.uploader = uploader;
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            begin();
+            try {
+                out.write(b);
+                written++;
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            begin();
+            try {
+                out.write(b, off, len);
+                written += len;
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            begin();
+            try {
+                out.flush();
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            begin();
+            try {
+                out.close();
+            } finally {
+                end();
+                cancel();
+            }
+        }
+
+        /**
+         * Stop watching without closing the body, e.g. when the request is dropped.
+         */
+        void cancel() {
+            watches.remove(this);
+        }
+
+        private void begin() {
+            writeStarted = System.nanoTime();
+            writing = true;
+        }
+
+        private void end() {
+            long elapsed = System.nanoTime() - writeStarted;
+            // Cleared first, so the timer may miss this write's time for a moment but never
+            // counts it twice.
+            writing = false;
+            writeNanos += elapsed;
+        }
+
+        /**
+         * @return Why the request is stalled, or null if it is not
+         */
+        String check(long now, long writeTimeout, long minBytesPerSecond, long window) {
+            if(writeTimeout > 0 && writing && now - writeStarted > writeTimeout) {
+                return "write blocked for more than " + TimeUnit.NANOSECONDS.toMillis(writeTimeout) + " ms";
+            }
+            // The window only advances while a write is in progress.
+            long completed = writeNanos;
+            long spent = completed + (writing ? now - writeStarted : 0);
+            if(minBytesPerSecond > 0 && spent - windowWriteNanos >= window) {
+                long sent = written - windowWritten;
+                double seconds = (spent - windowWriteNanos) / 1e9;
+                if(sent < minBytesPerSecond * seconds) {
+                    return String.format("sent %d bytes in %.1f s of writing, less than %d bytes per second", sent, seconds, minBytesPerSecond);
+                }
+                windowWriteNanos = spent;
+                windowWritten = written;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base for uploads from data which can only be read once and in order, e.g. a pipe. The size
+ * is usually not known up front, so such uploads are created with Upload-Defer-Length and the
+ * length is declared once the end has been read.
+ *
+ * The most recently read bytes are kept in a bounded replay buffer. When a request fails, the
+ * uploader asks the server for its offset and continues from there, which only works while
+ * that offset is still in the buffer. Data the server has confirmed is dropped from the
+ * buffer early, see {@link #acknowledge(long)}, so its capacity only has to cover the data
+ * which is in flight: the request payload, plus the chunks read ahead if enabled. The uploader
+ * keeps its requests small enough for that, see {@link #getReplayCapacity()}.
+ *
+ * A source may deliver nothing for a while, e.g. a non-blocking channel. Reads then return 0,
+ * the uploader ends its request and {@link #awaitData(long)} polls the source until more
+ * arrives.
+ *
+ * @author ksvraja
+ *
+ */
+public abstract class TusStreamSource extends TusFileStream {
+    public static final int DEFAULT_REPLAY_CAPACITY = 8 * 1024 * 1024;
+
+    private static final long POLL_MILLIS = 10;
+
+    private final long length;
+    private final byte[] replay;
+    private final byte[] scratch = new byte[64 * 1024];
+    private long retainedFrom;
+    private long produced;
+    private boolean eof;
+
+    /**
+     * @param fingerprint Key for the {@link TusURLStore}, or null for a random one
+     * @param length Number of bytes the source will deliver, or -1 if unknown
+     * @param replayCapacity Number of bytes kept for replaying failed requests
+     */
+    protected TusStreamSource(String fingerprint, long length, int replayCapacity) {
+        super(fingerprint);
+        this.length = length;
+        this.replay = new byte[replayCapacity];
+    }
+
+    /**
+     * Read the next bytes of the source into target.
+     *
+     * @return Number of bytes read, 0 if none are available yet, or -1 at the end of the source
+     */
+    protected abstract int readSource(ByteBuffer target) throws IOException;
+
+    /**
+     * Close the underlying source.
+     */
+    protected abstract void closeSource() throws IOException;
+
+    @Override
+    public boolean isLengthDeferred() {
+        return length < 0;
+    }
+
+    /**
+     * @return The length given on creation, or -1 if it is not known and the end of the source
+     * has not been reached yet
+     */
+    @Override
+    public synchronized long getSize() {
+        if(length >= 0) {
+            return length;
+        }
+        return eof ? produced : -1;
+    }
+
+    @Override
+    public int getReplayCapacity() {
+        return replay.length;
+    }
+
+    @Override
+    public synchronized void acknowledge(long offset) {
+        retainedFrom = Math.max(retainedFrom, Math.min(offset, produced));
+    }
+
+    /**
+     * Reads from the replay buffer if pos has been read before, from the source otherwise.
+     * Reading beyond what has been read so far skips the bytes in between, e.g. when resuming
+     * a stream which delivers the same data again.
+     *
+     * @throws IOException Thrown if pos has already been dropped from the replay buffer
+     */
+    @Override
+    public synchronized int readAt(ByteBuffer buffer, long pos) throws IOException {
+        if(pos < retainedFrom) {
+            throw new IOException("offset " + pos + " is no longer in the replay buffer, which starts at " + retainedFrom);
+        }
+        if(!buffer.hasRemaining()) {
+            return 0;
+        }
+        while(pos > produced) {
+            int count = fill((int) Math.min(scratch.length, pos - produced));
+            if(count <= 0) {
+                return count;
+            }
+        }
+
+        if(pos == produced) {
+            int count = fill(Math.min(scratch.length, buffer.remaining()));
+            if(count <= 0) {
+                return count;
+            }
+        }
+
+        int count = (int) Math.min(buffer.remaining(), produced - pos);
+        int index = (int) (pos % replay.length);
+        int first = Math.min(count, replay.length - index);
+        buffer.put(replay, index, first);
+        buffer.put(replay, 0, count - first);
+        return count;
+    }
+
+    /**
+     * Poll the source until it has delivered the byte at pos or ended.
+     */
+    @Override
+    public void awaitData(long pos) throws IOException {
+        while(true) {
+            synchronized(this) {
+                if(eof || pos < produced) {
+                    return;
+                }
+                if(fill(scratch.length) != 0) {
+                    continue;
+                }
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the source");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSource();
+    }
+
+    /**
+     * Read up to max bytes from the source into the replay buffer, dropping its oldest bytes
+     * if it is full.
+     *
+     * @return Number of bytes read, 0 if the source has none available yet, or -1 at the end of
+     * the source
+     */
+    private int fill(int max) throws IOException {
+        if(eof) {
+            return -1;
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(scratch, 0, Math.min(max, replay.length));
+        int count = readSource(target);
+        if(count == 0) {
+            return 0;
+        }
+        if(count == -1) {
+            eof = true;
+            if(length >= 0 && produced != length) {
+                throw new IOException("source ended after " + produced + " of " + length + " bytes");
+            }
+            return -1;
+        }
+
+        int index = (int) (produced % replay.length);
+        int first = Math.min(count, replay.length - index);
+        System.arraycopy(scratch, 0, replay, index, first);
+        System.arraycopy(scratch, first, replay, 0, count - first);
+        produced += count;
+        retainedFrom = Math.max(retainedFrom, produced - replay.length);
+        return count;
+    }
+}
@@ -0,0 +1,80 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Request body which takes tokens from one or more {@link TusRateLimiter}s before passing data
+ * on. Tokens are taken for slices of {@link #QUANTUM} bytes times the upload's weight, however
+ * small the single writes are. Since the limiters serve reservations in order, an upload with weight 4 gets about four times the share
+ * of an upload with weight 1 while both are sending.
+ *
+ * @author ksvraja
+ *
+ */
+class TusThrottledOutputStream extends FilterOutputStream {
+    static final int QUANTUM = 16 * 1024;
+
+    private final TusRateLimiter[] limiters;
+    private final int slice;
+    private int credit;
+
+    /**
+     * @param limiters Limiters to take tokens from, narrowest first
+     * @param weight Share of this upload relative to others using the same limiters
+     */
+    TusThrottledOutputStream(OutputStream out, List<TusRateLimiter> limiters, int weight) {
+        super(out);
+        this.limiters = limiters.toArray(new TusRateLimiter[limiters.size()]);
+        this.slice = QUANTUM * weight;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        acquire();
+        out.write(b);
+        credit--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            acquire();
+            int count = Math.min(len, credit);
+            out.write(b, off, count);
+            credit -= count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void acquire() throws IOException {
+        if(credit > 0) {
+            return;
+        }
+        // One after the other, so tokens of a wider limiter are not reserved while a narrower
+        // one still makes this upload wait.
+        for(TusRateLimiter limiter : limiters) {
+            limiter.acquire(slice);
+        }
+        credit = slice;
+    }
+}
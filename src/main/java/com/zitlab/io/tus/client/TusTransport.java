@@ -0,0 +1,31 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Opens the {@link TusConnection}s used for all requests of a {@link TusClient}. The default is
+ * {@link HttpURLConnectionTransport}.
+ *
+ * @author ksvraja
+ *
+ */
+public interface TusTransport {
+    public TusConnection openConnection(URL url) throws IOException;
+}
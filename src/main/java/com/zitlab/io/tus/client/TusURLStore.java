@@ -16,10 +16,24 @@
  */
 package com.zitlab.io.tus.client;
 
+import java.util.Map;
+
 public interface TusURLStore {
     public void put(String fingerprint, String url);
 
     public String get(String fingerprint);
 
     public void remove(String fingerprint);
+
+    /**
+     * Store several entries at once, e.g. for a batch of uploads created together. Durable
+     * stores override this to commit all entries with a single write and sync.
+     *
+     * @param entries URLs by fingerprint
+     */
+    public default void putAll(Map<String, String> entries) {
+        for(Map.Entry<String, String> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
 }
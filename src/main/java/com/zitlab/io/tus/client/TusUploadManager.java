@@ -0,0 +1,616 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many uploads with a bounded number of concurrent uploads, both overall and per host.
+ * Submitted uploads are queued and started as soon as a slot is free. Failed attempts are
+ * retried like {@link TusExecutor} does, but the delay before a retry is spent on a timer with
+ * the slot released, so no worker thread sleeps during backoff. If a {@link TusRetryPolicy} is
+ * set, it decides about the retries instead of the fixed delays.
+ * <p>
+ * Every submitted upload is returned as an {@link UploadHandle}, which can pause, resume,
+ * cancel and terminate it. A running upload is stopped by disconnecting its request in flight,
+ * so its slot, connection, buffers and file handle are freed right away, e.g. to make room for
+ * urgent uploads.
+ *
+ * @author ksvraja
+ *
+ */
+public class TusUploadManager {
+    private final TusClient client;
+    private final int maxConcurrentUploads;
+    private final int maxUploadsPerHost;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    private int[] delays = new int[]{500, 1000, 2000, 3000};
+    private int chunkSize = 2 * 1024 * 1024;
+    private TusRetryPolicy retryPolicy;
+
+    private final Map<String, Deque<Job>> pending = new HashMap<String, Deque<Job>>();
+    private final List<String> hosts = new ArrayList<String>();
+    private final Map<String, Integer> activePerHost = new HashMap<String, Integer>();
+    private int active;
+    private int nextHost;
+    private boolean shutdown;
+
+    /**
+     * @param client Client used for uploads submitted without their own client
+     * @param maxConcurrentUploads Maximum number of uploads running at the same time
+     * @param maxUploadsPerHost Maximum number of uploads running at the same time against one host
+     */
+    public TusUploadManager(TusClient client, int maxConcurrentUploads, int maxUploadsPerHost) {
+        this(client, maxConcurrentUploads, maxUploadsPerHost,
+                TusExecutors.newPlatformThreadExecutor());
+    }
+
+    /**
+     * Creates a manager whose uploads run on virtual threads where the JVM supports them, see
+     * {@link TusExecutors#newVirtualThreadExecutor()}. Since a waiting upload then costs a few
+     * kilobytes only, the concurrency limits can be set much higher than with platform threads.
+     */
+    public static TusUploadManager withVirtualThreads(TusClient client, int maxConcurrentUploads, int maxUploadsPerHost) {
+        return new TusUploadManager(client, maxConcurrentUploads, maxUploadsPerHost,
+                TusExecutors.newVirtualThreadExecutor());
+    }
+
+    /**
+     * @param workers Executor the upload attempts run on. At most maxConcurrentUploads tasks are
+     * submitted to it at any time.
+     */
+    public TusUploadManager(TusClient client, int maxConcurrentUploads, int maxUploadsPerHost, ExecutorService workers) {
+        if(maxConcurrentUploads < 1 || maxUploadsPerHost < 1) {
+            throw new IllegalArgumentException("concurrency limits must be at least 1");
+        }
+        this.client = client;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+        this.maxUploadsPerHost = maxUploadsPerHost;
+        this.workers = workers;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new TusThreadFactory("tus-retry"));
+    }
+
+    /**
+     * @see TusExecutor#setDelays(int[])
+     */
+    public void setDelays(int[] delays) {
+        this.delays = delays;
+    }
+
+    public int[] getDelays() {
+        return delays;
+    }
+
+    /**
+     * Sets the policy deciding about retries of all uploads, or null to use the delays. One
+     * policy is shared by all uploads, so its retry budget and circuit breakers apply to the
+     * manager as a whole.
+     */
+    public void setRetryPolicy(TusRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public TusRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @see TusUploader#setChunkSize(int)
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Queue an upload using the manager's client.
+     *
+     * @param upload File to upload
+     * @return Future completed with the upload URL once the upload is finished, or completed
+     * exceptionally with the last error once no more retries are left
+     */
+    public UploadHandle submit(TusFileStream upload) {
+        return submit(client, upload);
+    }
+
+    /**
+     * Queue an upload using a specific client, e.g. for another server. The per-host limit is
+     * applied to the host of the client's base URL.
+     */
+    public UploadHandle submit(TusClient client, TusFileStream upload) {
+        return submit(client, upload, 1);
+    }
+
+    /**
+     * Queue an upload with a share of the client's rate limits other than the default, e.g. a
+     * higher one for an upload a user is waiting for.
+     *
+     * @see TusUploader#setWeight(int)
+     */
+    public UploadHandle submit(TusClient client, TusFileStream upload, int weight) {
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        Job job = new Job(client, upload, weight);
+        synchronized(this) {
+            if(shutdown) {
+                throw new RejectedExecutionException("upload manager has been shut down");
+            }
+            enqueue(job);
+        }
+        dispatch();
+        return job.future;
+    }
+
+    /**
+     * @return Number of uploads waiting for a slot, not counting those waiting for a retry.
+     */
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for(Deque<Job> queue : pending.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Stop the manager. Queued uploads and uploads waiting for a retry are cancelled, running
+     * attempts are interrupted.
+     */
+    public void shutdown() {
+        List<Job> cancelled = new ArrayList<Job>();
+        synchronized(this) {
+            shutdown = true;
+            for(Deque<Job> queue : pending.values()) {
+                cancelled.addAll(queue);
+                queue.clear();
+            }
+        }
+        for(Job job : cancelled) {
+            job.future.cancel(false);
+        }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void dequeue(Job job) {
+        Deque<Job> queue = pending.get(job.host);
+        if(queue != null) {
+            queue.remove(job);
+        }
+    }
+
+    private void enqueue(Job job) {
+        Deque<Job> queue = pending.get(job.host);
+        if(queue == null) {
+            queue = new ArrayDeque<Job>();
+            pending.put(job.host, queue);
+            hosts.add(job.host);
+        }
+        queue.addLast(job);
+    }
+
+    /**
+     * Start queued jobs while there are free slots. Hosts are visited round-robin so one host
+     * with a long queue cannot starve the others.
+     */
+    private void dispatch() {
+        List<Job> started = new ArrayList<Job>();
+        synchronized(this) {
+            int idleHosts = 0;
+            while(active < maxConcurrentUploads && !shutdown && !hosts.isEmpty() && idleHosts < hosts.size()) {
+                nextHost = nextHost % hosts.size();
+                String host = hosts.get(nextHost);
+                Deque<Job> queue = pending.get(host);
+                Integer running = activePerHost.get(host);
+                int hostActive = running == null ? 0 : running;
+
+                Job job = null;
+                if(hostActive < maxUploadsPerHost) {
+                    job = queue.pollFirst();
+                    // Skip uploads whose future has been cancelled by the caller.
+                    while(job != null && job.future.isDone()) {
+                        job = queue.pollFirst();
+                    }
+                }
+
+                if(job == null) {
+                    if(queue.isEmpty() && hostActive == 0) {
+                        pending.remove(host);
+                        activePerHost.remove(host);
+                        hosts.remove(nextHost);
+                        continue;
+                    }
+                    idleHosts++;
+                } else {
+                    idleHosts = 0;
+                    active++;
+                    activePerHost.put(host, hostActive + 1);
+                    job.running = true;
+                    started.add(job);
+                }
+                nextHost++;
+            }
+        }
+
+        for(final Job job : started) {
+            try {
+                workers.execute(job);
+            } catch(RejectedExecutionException e) {
+                release(job);
+                job.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void release(Job job) {
+        synchronized(this) {
+            active--;
+            Integer running = activePerHost.get(job.host);
+            if(running != null) {
+                activePerHost.put(job.host, running - 1);
+            }
+            job.running = false;
+            job.uploader = null;
+            // Wake up terminate() waiting for the attempt to stop.
+            notifyAll();
+        }
+    }
+
+    private void finished(final Job job, Throwable error) {
+        boolean stopped;
+        boolean paused;
+        synchronized(this) {
+            release(job);
+            stopped = job.aborted && !job.future.isDone();
+            paused = job.paused;
+            job.aborted = false;
+            if(stopped && !paused) {
+                // Resumed while the attempt was being stopped.
+                enqueue(job);
+            }
+        }
+        boolean admitted = job.admitted;
+        job.admitted = false;
+        if(stopped || job.future.isDone()) {
+            // Paused or cancelled: the attempt failed because it was stopped, so no retry.
+            if(admitted) {
+                job.policy.onAbandoned(job.client.getBaseURL());
+            }
+            if(!stopped) {
+                suspend(job.upload, true);
+            } else if(paused) {
+                suspend(job.upload, false);
+            }
+            dispatch();
+            return;
+        }
+
+        long delay = -1;
+        if(error != null && !job.future.isDone()) {
+            delay = retryDelay(job, error);
+            if(admitted && !(error instanceof Exception)) {
+                job.policy.onAbandoned(job.client.getBaseURL());
+            }
+        } else if(error == null && admitted) {
+            job.policy.onSuccess(job.client.getBaseURL());
+        }
+
+        if(error == null) {
+            job.future.complete(job.uploadURL);
+        } else if(delay >= 0) {
+            job.client.getMetrics().retried(TusFailure.classify(error));
+            try {
+                synchronized(this) {
+                    job.waiting = true;
+                }
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized(TusUploadManager.this) {
+                            job.waiting = false;
+                            if(shutdown) {
+                                job.future.cancel(false);
+                                return;
+                            }
+                            if(job.future.isDone() || job.paused) {
+                                return;
+                            }
+                            enqueue(job);
+                        }
+                        dispatch();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch(RejectedExecutionException e) {
+                synchronized(this) {
+                    job.waiting = false;
+                }
+                job.future.completeExceptionally(error);
+            }
+        } else {
+            job.future.completeExceptionally(error);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * @return Delay before the job's next attempt, or -1 if it should not be retried
+     */
+    private long retryDelay(Job job, Throwable error) {
+        int attempt = job.attempt++;
+        if(job.policy != null) {
+            if(!(error instanceof Exception)) {
+                return -1;
+            }
+            return job.policy.onFailure(job.client.getBaseURL(), attempt, (Exception) error);
+        }
+        if(attempt < delays.length && shouldRetry(error)) {
+            return delays[attempt];
+        }
+        return -1;
+    }
+
+    private boolean shouldRetry(Throwable error) {
+        if(error instanceof TusProtocolException) {
+            return ((TusProtocolException) error).shouldRetry();
+        }
+        return error instanceof IOException;
+    }
+
+    /**
+     * Close the upload's file, for good or until it is read again.
+     */
+    private static void suspend(TusFileStream upload, boolean close) {
+        try {
+            if(close) {
+                upload.close();
+            } else {
+                upload.suspend();
+            }
+        } catch(IOException e) {
+            // Nothing is read from the file until it is opened again.
+        }
+    }
+
+    private static String hostOf(TusClient client) {
+        URL url = client.getBaseURL();
+        return url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    }
+
+    private class Job implements Runnable {
+        final TusClient client;
+        final TusFileStream upload;
+        final String host;
+        final int weight;
+        final UploadHandle future = new UploadHandle(this);
+        final TusRetryPolicy policy = retryPolicy;
+        int attempt;
+        // Whether the policy let the current attempt through, so it expects its outcome.
+        boolean admitted;
+        volatile URL uploadURL;
+        volatile TusUploader uploader;
+        volatile boolean aborted;
+        boolean running;
+        boolean waiting;
+        boolean paused;
+
+        Job(TusClient client, TusFileStream upload, int weight) {
+            this.client = client;
+            this.upload = upload;
+            this.weight = weight;
+            this.host = hostOf(client);
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            try {
+                if(policy != null) {
+                    policy.beforeAttempt(client.getBaseURL());
+                    admitted = true;
+                }
+                TusUploader uploader;
+                if(uploadURL != null && !client.isResumingEnabled()) {
+                    // Continue what an earlier attempt created, which the client cannot look
+                    // up without a URL store.
+                    uploader = new TusUploader(client, uploadURL, upload, client.probeOffset(uploadURL));
+                } else {
+                    uploader = client.resumeOrCreateUpload(upload);
+                }
+                uploadURL = uploader.getUploadURL();
+                if(client.getAdaptiveSizing() == null) {
+                    uploader.setChunkSize(chunkSize);
+                }
+                uploader.setWeight(weight);
+                this.uploader = uploader;
+                if(aborted || future.isDone()) {
+                    // Paused or cancelled while the upload was being created or looked up.
+                    uploader.abort();
+                }
+                while(uploader.uploadChunk() > -1) {
+                    if(future.isDone()) {
+                        // Cancelled by the caller, stop without finishing the upload.
+                        return;
+                    }
+                }
+                uploader.finish();
+                uploadURL = uploader.getUploadURL();
+            } catch(Throwable e) {
+                error = e;
+            } finally {
+                finished(this, error);
+            }
+        }
+    }
+
+    /**
+     * Future of a submitted upload, which also controls it.
+     */
+    public class UploadHandle extends CompletableFuture<URL> {
+        private final Job job;
+
+        private UploadHandle(Job job) {
+            this.job = job;
+        }
+
+        /**
+         * Stop the upload until {@link #resume()} is called. A running attempt is aborted and
+         * its slot is given to the next queued upload. The file is closed while paused.
+         */
+        public void pause() {
+            TusUploader uploader = null;
+            boolean idle;
+            synchronized(TusUploadManager.this) {
+                if(isDone() || job.paused) {
+                    return;
+                }
+                job.paused = true;
+                dequeue(job);
+                if(job.running) {
+                    job.aborted = true;
+                    uploader = job.uploader;
+                }
+                idle = !job.running;
+            }
+            if(uploader != null) {
+                uploader.abort();
+            }
+            if(idle) {
+                suspend(job.upload, false);
+            }
+        }
+
+        /**
+         * Queue a paused upload again. It continues at the offset the server has stored.
+         */
+        public void resume() {
+            synchronized(TusUploadManager.this) {
+                if(isDone() || !job.paused) {
+                    return;
+                }
+                job.paused = false;
+                if(job.running || job.waiting || shutdown) {
+                    // A stopping attempt or a pending retry queues the upload itself.
+                    return;
+                }
+                enqueue(job);
+            }
+            dispatch();
+        }
+
+        public boolean isPaused() {
+            synchronized(TusUploadManager.this) {
+                return job.paused;
+            }
+        }
+
+        /**
+         * Cancel the upload. A running attempt is aborted, and the file is closed. The upload
+         * stays on the server; use {@link #terminate()} to delete it.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(!super.cancel(mayInterruptIfRunning)) {
+                return false;
+            }
+            TusUploader uploader;
+            boolean idle;
+            synchronized(TusUploadManager.this) {
+                dequeue(job);
+                uploader = job.running ? job.uploader : null;
+                idle = !job.running;
+            }
+            if(uploader != null) {
+                uploader.abort();
+            }
+            if(idle) {
+                suspend(job.upload, true);
+            }
+            return true;
+        }
+
+        /**
+         * Cancel the upload and delete it on the server using the tus Termination extension.
+         * Its URL is removed from the client's URL store, so it is not resumed later. Waits
+         * until a running attempt has stopped, which takes as long as disconnecting its request.
+         *
+         * @return false if the upload had already finished, so it was not deleted
+         * @throws TusProtocolException Thrown if the server refused to delete the upload
+         * @throws IOException Thrown if the DELETE request failed
+         */
+        public boolean terminate() throws TusProtocolException, IOException {
+            cancel(false);
+            if(!isCompletedExceptionally()) {
+                return false;
+            }
+
+            URL uploadURL;
+            synchronized(TusUploadManager.this) {
+                while(job.running) {
+                    try {
+                        TusUploadManager.this.wait();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for the upload to stop");
+                    }
+                }
+                uploadURL = job.uploadURL;
+            }
+
+            TusClient client = job.client;
+            TusURLStore store = client.isResumingEnabled() ? client.getUrlStore() : null;
+            String fingerprint = job.upload.getFingerprint();
+            if(uploadURL == null && store != null) {
+                String storedURL = store.get(fingerprint);
+                if(storedURL != null) {
+                    uploadURL = new URL(client.getBaseURL(), storedURL);
+                }
+            }
+            if(uploadURL != null) {
+                client.terminateUpload(uploadURL);
+            }
+            if(store != null) {
+                store.remove(fingerprint);
+            }
+            return true;
+        }
+    }
+}
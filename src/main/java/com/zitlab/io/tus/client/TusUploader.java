@@ -17,10 +17,19 @@
 package com.zitlab.io.tus.client;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 public class TusUploader {
@@ -28,18 +37,48 @@ public class TusUploader {
     private TusFileStream input;
     private long offset;
     private TusClient client;
-    private byte[] buffer;
+    private ByteBuffer buffer;
+    private int chunkSize;
+    private boolean transferToEnabled;
+    private TusAdaptiveSizer sizer;
+    private boolean firstChunkOfRequest;
+    private boolean complete;
+    private TusReadAhead readAhead;
+    private ByteBuffer readAheadBuffer;
+    private int maxRecoveries = 3;
+    private int recoveries;
     private int requestPayloadSize = 1024 * 1024 * 1024;
     private int bytesRemainingForRequest;
+    private final long created = System.nanoTime();
+    private long bytesSent;
+    private long requestStarted;
+    private TusCompressor compressor;
+    private boolean lengthDeclared;
+    private boolean checksumNegotiated;
+    private TusChecksum checksum;
+    private ByteBuffer checksumChunk;
+    private String chunkChecksum;
+    private int checksumRetries;
+    private TusChecksum contentDigest;
+    private long digestOffset;
+    private String contentDigestValue;
+    private CompletableFuture<Void> urlStored;
+    private IOException urlStoreFailure;
+    private TusRateLimiter rateLimiter;
+    private int weight = 1;
 
-    private HttpURLConnection connection;
+    private volatile TusConnection connection;
+    private volatile boolean aborted;
+    private volatile String stalled;
+    private TusStallWatchdog.Watch watch;
     private OutputStream output;
+    private WritableByteChannel outputChannel;
 
     /**
      * Begin a new upload request by opening a PATCH request to specified upload URL. After this
      * method returns a connection will be ready and you can upload chunks of the file.
      *
-     * @param client Used for preparing a request ({@link TusClient#prepareConnection(HttpURLConnection)}
+     * @param client Used for opening and preparing a request ({@link TusClient#prepareConnection(TusConnection)}
      * @param uploadURL URL to send the request to
      * @param input Stream to read (and seek) from and upload to the remote server
      * @param offset Offset to read from
@@ -50,10 +89,36 @@ public class TusUploader {
         this.input = input;
         this.offset = offset;
         this.client = client;
+        this.compressor = client.getCompressor();
 
         input.seekTo(offset);
 
-        setChunkSize(2 * 1024 * 1024);
+        if(client.getContentDigestAlgorithm() != null) {
+            try {
+                contentDigest = TusChecksum.getInstance(client.getContentDigestAlgorithm());
+            } catch(NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        TusAdaptiveSizing sizing = client.getAdaptiveSizing();
+        if(sizing != null) {
+            sizer = new TusAdaptiveSizer(sizing);
+            setChunkSize(sizer.getChunkSize());
+            requestPayloadSize = sizer.getRequestPayloadSize();
+        } else {
+            setChunkSize(2 * 1024 * 1024);
+        }
+    }
+
+    /**
+     * Create an uploader for content which the server already holds completely. It sends no
+     * requests: {@link #uploadChunk()} returns -1 right away.
+     */
+    static TusUploader completed(TusClient client, URL uploadURL, TusFileStream input) throws IOException {
+        TusUploader uploader = new TusUploader(client, uploadURL, input, input.getSize());
+        uploader.complete = true;
+        return uploader;
     }
 
     private void openConnection() throws TusProtocolException, IOException {
@@ -61,15 +126,41 @@ public class TusUploader {
         if(connection != null) {
             return;
         }
+        // A source still being written may have nothing to send yet: wait before the request,
+        // not while holding it open.
+        input.awaitData(input.getPosition());
 
+        if(sizer != null) {
+            requestPayloadSize = sizer.getRequestPayloadSize();
+        }
         bytesRemainingForRequest = requestPayloadSize;
+        int replayCapacity = input.getReplayCapacity();
+        if(replayCapacity >= 0) {
+            // Everything sent in this request, and read ahead after it, must still be replayable
+            // if the request fails.
+            int inFlight = replayCapacity - client.getReadAheadChunks() * getChunkSize();
+            bytesRemainingForRequest = Math.min(bytesRemainingForRequest, Math.max(inFlight, getChunkSize()));
+        }
+        firstChunkOfRequest = true;
+        requestStarted = System.nanoTime();
       //  input.mark(requestPayloadSize);
 
-        connection = (HttpURLConnection) uploadURL.openConnection();
+        connection = client.getTransport().openConnection(uploadURL);
+        stalled = null;
         client.prepareConnection(connection);
         connection.setRequestProperty("Upload-Offset", Long.toString(offset));
         connection.setRequestProperty("Content-Type", "application/offset+octet-stream");
         connection.setRequestProperty("Expect", "100-continue");
+        if(input.isLengthDeferred() && !lengthDeclared && input.getSize() >= 0) {
+            connection.setRequestProperty("Upload-Length", Long.toString(input.getSize()));
+            lengthDeclared = true;
+        }
+        if(compressor != null) {
+            connection.setRequestProperty("Content-Encoding", compressor.getContentEncoding());
+        }
+        if(checksumChunk != null) {
+            connection.setRequestProperty("Upload-Checksum", chunkChecksum);
+        }
         try {
             connection.setRequestMethod("PATCH");
             // Check whether we are running on a buggy JRE
@@ -78,10 +169,19 @@ public class TusUploader {
             connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
         }
 
-        connection.setDoOutput(true);
-        connection.setChunkedStreamingMode(0);
+        if(checksumChunk != null && compressor == null) {
+            connection.setFixedLengthStreamingMode(checksumChunk.remaining());
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
         try {
-            output = connection.getOutputStream();
+            OutputStream body = connection.getOutputStream();
+            watch = client.getStallWatchdog().watch(body, this, connection);
+            output = throttle(watch != null ? watch : body);
+            if(compressor != null) {
+                output = compressor.compress(output);
+            }
+            outputChannel = Channels.newChannel(output);
         } catch(java.net.ProtocolException pe) {
             // If we already have a response code available, our expectation using the "Expect: 100-
             // continue" header failed and we should handle this response.
@@ -93,17 +193,47 @@ public class TusUploader {
         }
     }
 
+    /**
+     * Wrap the request body so it takes tokens from the rate limiters of this upload, its host
+     * and the client. Compressed data is counted as it goes over the wire.
+     */
+    private OutputStream throttle(OutputStream out) {
+        List<TusRateLimiter> limiters = new ArrayList<TusRateLimiter>(3);
+        if(rateLimiter != null) {
+            limiters.add(rateLimiter);
+        }
+        TusRateLimiter hostLimiter = client.getHostRateLimiter(uploadURL);
+        if(hostLimiter != null) {
+            limiters.add(hostLimiter);
+        }
+        if(client.getRateLimiter() != null) {
+            limiters.add(client.getRateLimiter());
+        }
+        if(limiters.isEmpty()) {
+            return out;
+        }
+        return new TusThrottledOutputStream(out, limiters, weight);
+    }
+
     /**
      * Sets the used chunk size. This number is used by {@link #uploadChunk()} to indicate how
      * much data is uploaded in a single take. When choosing a value for this parameter you need to
      * consider that uploadChunk() will only return once the specified number of bytes has been
      * sent. For slow internet connections this may take a long time. In addition, a buffer with
-     * the chunk size is allocated and kept in memory.
+     * the chunk size is taken from the client's {@link TusBufferPool} while a request is open.
+     * If adaptive sizing is enabled on the client, the chunk size is adjusted after every chunk.
      *
      * @param size The new chunk size
      */
     public void setChunkSize(int size) {
-        buffer = new byte[size];
+        if(buffer != null && buffer.capacity() < size) {
+            client.getBufferPool().release(buffer);
+            buffer = null;
+        }
+        chunkSize = size;
+        if(readAhead != null) {
+            readAhead.setChunkSize(size);
+        }
     }
 
     /**
@@ -112,7 +242,22 @@ public class TusUploader {
      * @return Current chunk size
      */
     public int getChunkSize() {
-        return buffer.length;
+        return chunkSize;
+    }
+
+    /**
+     * Enables sending chunks with {@link TusFileStream#transferTo(WritableByteChannel, long)}
+     * instead of reading them into a pooled buffer first. No chunk buffer is held at all in this
+     * mode, and the data is copied by the JDK directly from the file into the request body.
+     *
+     * @param transferToEnabled true to transfer chunks without an intermediate buffer
+     */
+    public void setTransferToEnabled(boolean transferToEnabled) {
+        this.transferToEnabled = transferToEnabled;
+    }
+
+    public boolean isTransferToEnabled() {
+        return transferToEnabled;
     }
 
     /**
@@ -120,7 +265,9 @@ public class TusUploader {
      * bigger uploads into multiple requests. For example, if you have a resource of 2MB and
      * the payload size set to 1MB, the upload will be transferred by two requests of 1MB each.
      *
-     * The default value for this setting is 1024 * 1024 * 1024 bytes (GiB).
+     * The default value for this setting is 1024 * 1024 * 1024 bytes (GiB). Requests of a stream
+     * which can only replay its recent data are limited further, see
+     * {@link TusFileStream#getReplayCapacity()}.
      *
      * Be aware that setting a low maximum payload size (in the megabytes or even less range) will result in decreased
      * performance since more requests need to be used for an upload. Each request will come with its overhead in terms
@@ -156,6 +303,53 @@ public class TusUploader {
         return requestPayloadSize;
     }
 
+    /**
+     * Sets how often in a row a failed request is recovered in place: the broken connection is
+     * dropped, the server is asked for its offset with a HEAD request and the upload continues
+     * from there with the next request. Only the data the server did not receive is sent again,
+     * instead of the whole request. Set to 0 to let the exception reach the caller right away,
+     * e.g. to handle it in a {@link TusExecutor}. The default is 3.
+     *
+     * @param maxRecoveries Number of consecutive failures to recover from
+     */
+    public void setMaxRecoveries(int maxRecoveries) {
+        this.maxRecoveries = maxRecoveries;
+    }
+
+    public int getMaxRecoveries() {
+        return maxRecoveries;
+    }
+
+    /**
+     * Limits the rate of this upload alone, in addition to the client's and the host's limits.
+     * Takes effect with the next request; the limiter's rate can be changed at any time.
+     */
+    public void setRateLimiter(TusRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public TusRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets this upload's share of the rate limits it competes for with other uploads. An
+     * interactive upload with weight 4 gets about four times the bandwidth of a bulk upload with
+     * the default weight of 1. Takes effect with the next request.
+     *
+     * @param weight Relative share, at least 1
+     */
+    public void setWeight(int weight) {
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
     /**
      * Upload a part of the file by reading a chunk from the InputStream and writing
      * it to the HTTP request's body. If the number of available bytes is lower than the chunk's
@@ -165,30 +359,183 @@ public class TusUploader {
      * The size of the read chunk can be obtained using {@link #getChunkSize()} and changed
      * using {@link #setChunkSize(int)}.
      * In order to obtain the new offset, use {@link #getOffset()} after this method returns.
+     * If writing fails, the upload is resynchronised with the server's offset (see
+     * {@link #setMaxRecoveries(int)}) and 0 is returned.
+     * Once the end of the file is reached, the open request is finished, and -1 is only returned
+     * after the server confirmed the whole upload.
      *
-     * @return Number of bytes read and written.
+     * @return Number of bytes read and written, or -1 if the upload is complete.
      * @throws IOException  Thrown if an exception occurs while reading from the source or writing
      *                      to the HTTP request.
      */
     public int uploadChunk() throws TusProtocolException,  IOException {
+        if(complete) {
+            return -1;
+        }
+        if(aborted) {
+            throw stopAborted(null);
+        }
+
+        try {
+            return writeChunk();
+        } catch(IOException e) {
+            if(aborted) {
+                throw stopAborted(e);
+            }
+            if(stalled != null) {
+                e = stallTimeout(e);
+            }
+            if(!recover(e)) {
+                dropConnection();
+                throw e;
+            }
+            return 0;
+        } catch(TusProtocolException e) {
+            if(aborted) {
+                throw stopAborted(e);
+            }
+            if(stalled != null) {
+                // The disconnected request may look like an invalid response.
+                IOException timeout = stallTimeout(e);
+                if(!recover(timeout)) {
+                    dropConnection();
+                    throw timeout;
+                }
+                return 0;
+            }
+            dropConnection();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the upload from any thread, e.g. to pause or cancel it. The request in flight is
+     * disconnected, so a write blocked on the socket fails right away instead of waiting for a
+     * timeout. The thread uploading then gets an {@link InterruptedIOException} from
+     * {@link #uploadChunk()}, which returns the uploader's buffers to the pool first. The upload
+     * stays on the server and can be resumed with a new uploader.
+     */
+    public void abort() {
+        aborted = true;
+        TusConnection current = connection;
+        if(current != null) {
+            current.disconnect();
+        }
+    }
+
+    /**
+     * Disconnect a stalled request, see {@link TusStallWatchdog}. The thread uploading fails with
+     * a {@link SocketTimeoutException} and recovers like after any broken connection.
+     *
+     * @param stalledConnection The request found stalled, which is ignored if it already ended
+     * @param reason Description of the stall
+     */
+    void stall(TusConnection stalledConnection, String reason) {
+        if(connection != stalledConnection) {
+            return;
+        }
+        stalled = reason;
+        stalledConnection.disconnect();
+    }
+
+    private SocketTimeoutException stallTimeout(Exception cause) {
+        SocketTimeoutException timeout = new SocketTimeoutException("request stalled: " + stalled);
+        timeout.initCause(cause);
+        stalled = null;
+        return timeout;
+    }
+
+    /**
+     * Release what the aborted upload holds, on the thread using the uploader.
+     */
+    private InterruptedIOException stopAborted(Exception cause) {
+        try {
+            abortConnection();
+        } catch(IOException e) {
+            // The upload is stopped anyway.
+        }
+        stopReadAhead();
+        InterruptedIOException stopped = new InterruptedIOException("upload aborted");
+        stopped.initCause(cause);
+        return stopped;
+    }
+
+    private int writeChunk() throws TusProtocolException,  IOException {
+        if(!checksumNegotiated) {
+            String algorithm = client.negotiateChecksumAlgorithm();
+            if(algorithm != null) {
+                try {
+                    checksum = TusChecksum.getInstance(algorithm);
+                } catch(NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+            }
+            checksumNegotiated = true;
+        }
+        if(checksum != null) {
+            return writeChecksummedChunk();
+        }
+
         openConnection();
 
-//        int bytesToRead = Math.min(getChunkSize(), bytesRemainingForRequest);
+        int bytesToRead = Math.min(getChunkSize(), bytesRemainingForRequest);
+        long start = System.nanoTime();
 
-        int bytesRead = input.read(buffer);
-        if(bytesRead == -1) {
-            // No bytes were read since the input stream is empty
-            return -1;
+        int bytesRead;
+        try {
+            if(transferToEnabled) {
+                bytesRead = (int) input.transferTo(outputChannel, bytesToRead);
+            } else if(client.getReadAheadChunks() > 0) {
+                bytesRead = writeReadAhead(bytesToRead);
+            } else {
+                if(buffer == null) {
+                    buffer = client.getBufferPool().acquire(chunkSize);
+                }
+                buffer.clear().limit(bytesToRead);
+                bytesRead = input.read(buffer);
+                if(bytesRead > 0) {
+                    // Only the bytes read are written since the buffer is reused
+                    // and may be larger than the number of bytes left in the file.
+                    buffer.flip();
+                    updateDigest(buffer.duplicate(), offset);
+                    while(buffer.hasRemaining()) {
+                        outputChannel.write(buffer);
+                    }
+                }
+            }
+            if(bytesRead == -1) {
+                // No bytes were read since the input stream is empty. Finish the request to
+                // learn whether the server has really received everything.
+                finishConnection();
+                return finishInput();
+            }
+            if(bytesRead == 0) {
+                // The source has no data yet: end the request, the next one waits for data.
+                finishConnection();
+                return 0;
+            }
+            output.flush();
+        } catch(IOException e) {
+            if(sizer != null) {
+                sizer.onFailure();
+            }
+            throw e;
         }
 
-        // Do not write the entire buffer to the stream since the array will
-        // be filled up with 0x00s if the number of read bytes is lower then
-        // the chunk's size.
-        output.write(buffer, 0, bytesRead);
-        output.flush();
+        if(sizer != null) {
+            // The first chunk of a request also waits for the connection and the server's
+            // "100 Continue", so it says little about the link's throughput.
+            if(!firstChunkOfRequest) {
+                sizer.onChunkWritten(bytesRead, System.nanoTime() - start);
+                setChunkSize(sizer.getChunkSize());
+            }
+        }
+        firstChunkOfRequest = false;
 
         offset += bytesRead;
         bytesRemainingForRequest -= bytesRead;
+        bytesSent += bytesRead;
+        client.getMetrics().bytesSent(bytesRead);
 
         if(bytesRemainingForRequest <= 0) {
             finishConnection();
@@ -197,6 +544,313 @@ public class TusUploader {
         return bytesRead;
     }
 
+    /**
+     * Called once the end of the input has been read and no request is open.
+     *
+     * @return 0 if the server is missing data and the upload continues, -1 if it is complete
+     */
+    private int finishInput() throws TusProtocolException, IOException {
+        if(input.isLengthDeferred() && !lengthDeclared && offset == input.getSize()) {
+            // The length became known while the last request was sent: declare it
+            // with an empty request.
+            openConnection();
+            finishConnection();
+        }
+        return offset < input.getSize() ? 0 : -1;
+    }
+
+    /**
+     * Send exactly one chunk in a request with an Upload-Checksum header. The chunk is kept
+     * until the server has accepted it, so a checksum mismatch only sends this request again.
+     */
+    private int writeChecksummedChunk() throws TusProtocolException, IOException {
+        if(checksumChunk == null) {
+            checksumChunk = readChunk();
+            if(checksumChunk == null) {
+                return finishInput();
+            }
+            checksum.update(checksumChunk.duplicate());
+            chunkChecksum = checksum.toHeaderValue();
+        }
+
+        int length = checksumChunk.remaining();
+        openConnection();
+        try {
+            ByteBuffer body = checksumChunk.duplicate();
+            while(body.hasRemaining()) {
+                outputChannel.write(body);
+            }
+            output.flush();
+        } catch(IOException e) {
+            if(sizer != null) {
+                sizer.onFailure();
+            }
+            throw e;
+        }
+
+        long chunkStart = offset;
+        offset += length;
+        try {
+            finishConnection();
+        } catch(TusProtocolException e) {
+            TusConnection failed = e.getCausingConnection();
+            if(failed != null && failed.getResponseCode() == 460 && checksumRetries < maxRecoveries) {
+                // The server discarded the request because the data arrived corrupted.
+                connection = null;
+                offset = chunkStart;
+                checksumRetries++;
+                client.getMetrics().retried(TusFailure.CHECKSUM);
+                client.getMetrics().bytesResent(length);
+                return 0;
+            }
+            throw e;
+        }
+
+        if(checksumChunk != null) {
+            // Accepted as a whole: the digest can be taken from the chunk still in memory.
+            updateDigest(checksumChunk.duplicate(), chunkStart);
+            releaseChecksumChunk();
+        }
+        checksumRetries = 0;
+        bytesSent += length;
+        client.getMetrics().bytesSent(length);
+        return length;
+    }
+
+    /**
+     * @return The next chunk of the input, or null at its end
+     */
+    private ByteBuffer readChunk() throws IOException {
+        if(client.getReadAheadChunks() > 0) {
+            if(readAhead == null) {
+                readAhead = new TusReadAhead(input, input.getPosition(), client.getReadAheadChunks(),
+                        chunkSize, client.getBufferPool());
+                readAhead.start(client.getReadAheadExecutor());
+            }
+            ByteBuffer chunk = readAhead.take();
+            while(chunk != null && !chunk.hasRemaining()) {
+                // Read while the source had no data; no request is open, so just wait for more.
+                client.getBufferPool().release(chunk);
+                chunk = readAhead.take();
+            }
+            if(chunk != null) {
+                input.seekTo(input.getPosition() + chunk.remaining());
+            }
+            return chunk;
+        }
+
+        ByteBuffer chunk = client.getBufferPool().acquire(chunkSize);
+        while(chunk.hasRemaining()) {
+            int bytesRead = input.read(chunk);
+            if(bytesRead == -1) {
+                break;
+            }
+            if(bytesRead == 0) {
+                if(chunk.position() > 0) {
+                    break;
+                }
+                input.awaitData(input.getPosition());
+            }
+        }
+        chunk.flip();
+        if(!chunk.hasRemaining()) {
+            client.getBufferPool().release(chunk);
+            return null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Drop the chunk kept for a checksummed request, e.g. because the server's offset has
+     * changed, and read again from the current offset.
+     */
+    private void releaseChecksumChunk() throws IOException {
+        if(checksumChunk == null) {
+            return;
+        }
+        client.getBufferPool().release(checksumChunk);
+        checksumChunk = null;
+        chunkChecksum = null;
+        if(input.getPosition() != offset) {
+            stopReadAhead();
+            input.seekTo(offset);
+        }
+    }
+
+    /**
+     * Add data starting at the given upload offset to the content digest. If the digest has
+     * not reached that offset yet, e.g. after resuming, the data in between is read first.
+     */
+    private void updateDigest(ByteBuffer data, long start) {
+        if(contentDigest == null || start + data.remaining() <= digestOffset) {
+            return;
+        }
+        try {
+            catchUpDigest(start);
+        } catch(IOException e) {
+            // The data before this chunk cannot be read again, e.g. from a stream.
+            contentDigest = null;
+            return;
+        }
+        data.position(data.position() + (int) (digestOffset - start));
+        digestOffset += data.remaining();
+        contentDigest.update(data);
+    }
+
+    private void catchUpDigest(long target) throws IOException {
+        if(digestOffset >= target) {
+            return;
+        }
+        ByteBuffer scratch = client.getBufferPool().acquire(64 * 1024);
+        try {
+            while(digestOffset < target) {
+                scratch.clear().limit((int) Math.min(scratch.capacity(), target - digestOffset));
+                int count = input.readAt(scratch, digestOffset);
+                if(count == -1) {
+                    throw new IOException("input ended at " + digestOffset);
+                }
+                scratch.flip();
+                contentDigest.update(scratch);
+                digestOffset += count;
+            }
+        } finally {
+            client.getBufferPool().release(scratch);
+        }
+    }
+
+    /**
+     * Write up to the given number of bytes from the chunks read ahead. A chunk which does not
+     * fit into the current request is kept and continued in the next one.
+     */
+    private int writeReadAhead(int bytesToWrite) throws IOException {
+        if(readAhead == null) {
+            readAhead = new TusReadAhead(input, input.getPosition(), client.getReadAheadChunks(),
+                    chunkSize, client.getBufferPool());
+            readAhead.start(client.getReadAheadExecutor());
+        }
+
+        if(readAheadBuffer == null || !readAheadBuffer.hasRemaining()) {
+            client.getBufferPool().release(readAheadBuffer);
+            // Cleared first, so a failing take() does not leave the released buffer to be
+            // released again.
+            readAheadBuffer = null;
+            readAheadBuffer = readAhead.take();
+            while(firstChunkOfRequest && readAheadBuffer != null && !readAheadBuffer.hasRemaining()) {
+                // Offered before this request waited for data, so there is nothing to end.
+                client.getBufferPool().release(readAheadBuffer);
+                readAheadBuffer = null;
+                readAheadBuffer = readAhead.take();
+            }
+            if(readAheadBuffer == null) {
+                return -1;
+            }
+        }
+
+        int limit = readAheadBuffer.limit();
+        int count = Math.min(bytesToWrite, readAheadBuffer.remaining());
+        readAheadBuffer.limit(readAheadBuffer.position() + count);
+        updateDigest(readAheadBuffer.duplicate(), offset);
+        while(readAheadBuffer.hasRemaining()) {
+            outputChannel.write(readAheadBuffer);
+        }
+        readAheadBuffer.limit(limit);
+
+        // Keep the stream's position at what has been sent, not at what has been read ahead.
+        input.seekTo(input.getPosition() + count);
+        return count;
+    }
+
+    /**
+     * Continue after a failed request from the offset the server has actually received.
+     *
+     * @return true if the upload can continue, false if the exception should be thrown
+     */
+    private boolean recover(IOException error) {
+        // Timeouts are recovered from, but not interrupts.
+        if(recoveries >= maxRecoveries
+                || (error instanceof InterruptedIOException && !(error instanceof SocketTimeoutException))) {
+            return false;
+        }
+        recoveries++;
+
+        try {
+            abortConnection();
+            // Read ahead again, in case reading failed rather than the request.
+            stopReadAhead();
+            long serverOffset = client.probeOffset(uploadURL);
+            seek(serverOffset);
+            input.acknowledge(serverOffset);
+            client.getMetrics().retried(TusFailure.classify(error));
+            return true;
+        } catch(TusProtocolException e) {
+            error.addSuppressed(e);
+        } catch(IOException e) {
+            error.addSuppressed(e);
+        }
+        return false;
+    }
+
+    /**
+     * Drop the request of a failed upload, so the connection is released even if the uploader
+     * is thrown away, e.g. a permit of a {@link PooledHttpTransport}.
+     */
+    private void dropConnection() {
+        try {
+            abortConnection();
+        } catch(IOException e) {
+            // The upload fails anyway.
+        }
+    }
+
+    /**
+     * Drop the current request without waiting for its response.
+     */
+    private void abortConnection() throws IOException {
+        releaseChecksumChunk();
+        client.getBufferPool().release(buffer);
+        buffer = null;
+        if(watch != null) {
+            watch.cancel();
+            watch = null;
+        }
+        output = null;
+        outputChannel = null;
+        if(connection != null) {
+            connection.disconnect();
+            connection = null;
+        }
+    }
+
+    /**
+     * Continue the upload at the given offset, which the server reported as received.
+     */
+    private void seek(long serverOffset) throws IOException {
+        if(serverOffset == offset) {
+            return;
+        }
+        if(serverOffset < offset) {
+            client.getMetrics().bytesResent(offset - serverOffset);
+        }
+        if(contentDigest != null && serverOffset < digestOffset) {
+            // The digest cannot be rewound: start over and catch up when data is sent again.
+            contentDigest.digest();
+            digestOffset = 0;
+        }
+        releaseChecksumChunk();
+        stopReadAhead();
+        input.seekTo(serverOffset);
+        offset = serverOffset;
+    }
+
+    private void stopReadAhead() {
+        if(readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
+        client.getBufferPool().release(readAheadBuffer);
+        readAheadBuffer = null;
+    }
+
     /**
      * Get the current offset for the upload. This is the number of all bytes uploaded in total and
      * in all requests (not only this one). You can use it in conjunction with
@@ -212,6 +866,23 @@ public class TusUploader {
         return uploadURL;
     }
 
+    /**
+     * @return Base64 encoded digest of the whole content, computed with the client's
+     * {@link TusClient#setContentDigestAlgorithm(String) content digest algorithm}, or null
+     * if none is set, the upload is not finished yet or the digest could not be computed
+     */
+    public String getContentDigest() {
+        return contentDigestValue;
+    }
+
+    /**
+     * @return Average number of bytes this uploader has sent per second since it was created
+     */
+    public double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed <= 0 ? 0 : bytesSent * 1e9 / elapsed;
+    }
+
     /**
      * Finish the request by closing the HTTP connection and the InputStream.
      * You can call this method even before the entire file has been uploaded. Use this behavior to
@@ -219,42 +890,140 @@ public class TusUploader {
      *
      * @throws TusProtocolException Thrown if the server sends an unexpected status
      * code
-     * @throws IOException  Thrown if an exception occurs while cleaning up.
+     * @throws IOException  Thrown if an exception occurs while cleaning up, or if the upload URL
+     * could not be stored for resuming because its content fingerprint could not be computed. The
+     * upload is finished anyway, so {@link #isComplete()} still tells whether the server holds it.
      */
     public void finish() throws TusProtocolException,  IOException {
+        releaseChecksumChunk();
+        stopReadAhead();
         finishConnection();
+        awaitUrlStored();
+        if(!complete && offset == input.getSize()) {
+            // Before closing the input, since the digest may have to read it to catch up.
+            storeContentDigest();
+        }
         input.close();
+
+        if(!complete && offset == input.getSize()) {
+            TusCompletionIndex completionIndex = client.getCompletionIndex();
+            if(completionIndex != null && !input.isPartial() && input.hasContentFingerprint()
+                    && urlStoreFailure == null) {
+                completionIndex.markCompleted(input.getFingerprint(), uploadURL.toString(), offset);
+            }
+            complete = true;
+            client.getMetrics().uploadCompleted(bytesSent, System.nanoTime() - created);
+        }
+        if(urlStoreFailure != null) {
+            IOException failure = urlStoreFailure;
+            urlStoreFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * @param urlStored Completes once the upload URL is stored for resuming, which waits for a
+     * content fingerprint still being computed. {@link #finish()} waits for it and reports it
+     * if it failed.
+     */
+    void setUrlStored(CompletableFuture<Void> urlStored) {
+        this.urlStored = urlStored;
+    }
+
+    private void awaitUrlStored() {
+        if(urlStored == null) {
+            return;
+        }
+        CompletableFuture<Void> stored = urlStored;
+        urlStored = null;
+        try {
+            stored.join();
+        } catch(CompletionException e) {
+            urlStoreFailure = new IOException("the upload URL could not be stored for resuming", e.getCause());
+        }
+    }
+
+    private void storeContentDigest() {
+        if(contentDigest == null) {
+            return;
+        }
+        try {
+            catchUpDigest(offset);
+        } catch(IOException e) {
+            contentDigest = null;
+            return;
+        }
+        contentDigestValue = Base64.getEncoder().encodeToString(contentDigest.digest());
+        if(client.isResumingEnabled() && client.getUrlStore() != null && urlStoreFailure == null) {
+            client.getUrlStore().put(TusClient.DIGEST_PREFIX + input.getFingerprint(),
+                    contentDigest.getAlgorithm() + " " + contentDigestValue);
+        }
+    }
+
+    /**
+     * @return true if the server is known to hold the whole upload, either because the
+     * {@link TusCompletionIndex} said so or because {@link #finish()} confirmed the last offset.
+     */
+    public boolean isComplete() {
+        return complete;
     }
 
     private void finishConnection() throws TusProtocolException, IOException {
+        // Hand the chunk buffer back while no request is open, so idle uploaders hold no memory.
+        client.getBufferPool().release(buffer);
+        buffer = null;
+
         if(output != null) output.close();
+        output = null;
+        watch = null;
+        outputChannel = null;
 
         if(connection != null) {
             int responseCode = connection.getResponseCode();
+            client.getMetrics().requestCompleted("PATCH", System.nanoTime() - requestStarted);
             connection.disconnect();
 
+            if(responseCode == 415 && compressor != null) {
+                // The server cannot decode the Content-Encoding: continue uncompressed from
+                // what it has stored.
+                compressor = null;
+                connection = null;
+                seek(client.probeOffset(uploadURL));
+                return;
+            }
+
             if (!(responseCode >= 200 && responseCode < 300)) {
+                if(sizer != null) {
+                    sizer.onFailure();
+                }
                 throw new TusProtocolException("unexpected status code (" + responseCode + ") while uploading chunk", connection);
             }
 
-            // TODO detect changes and seek accordingly
             long serverOffset = getHeaderFieldLong(connection, "Upload-Offset");
             if(serverOffset == -1) {
                 throw new TusProtocolException("response to PATCH request contains no or invalid Upload-Offset header", connection);
             }
-            if(offset != serverOffset) {
+            if(input.getSize() >= 0 && serverOffset > input.getSize()) {
                 throw new TusProtocolException(
-                        String.format("response contains different Upload-Offset value (%d) than expected (%d)",
+                        String.format("response contains Upload-Offset value (%d) beyond the upload's size (%d)",
                                 serverOffset,
-                                offset),
+                                input.getSize()),
                         connection);
             }
+            // The server did not store exactly what was sent: continue from its offset with
+            // the next request instead of failing the whole attempt.
+            seek(serverOffset);
+            input.acknowledge(serverOffset);
 
             connection = null;
+            recoveries = 0;
+            if(sizer != null) {
+                sizer.onRequestSucceeded();
+            }
         }
     }
 
-    private long getHeaderFieldLong(URLConnection connection, String field) {
+    private long getHeaderFieldLong(TusConnection connection, String field) {
         String value = connection.getHeaderField(field);
         if(value == null) {
             return -1;
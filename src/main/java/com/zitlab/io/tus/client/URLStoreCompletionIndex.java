@@ -0,0 +1,82 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link TusCompletionIndex} kept in a {@link TusURLStore}, e.g. a {@link JournalURLStore} to make
+ * it durable. Entries are stored under the fingerprint with a prefix, so the store can be shared
+ * with the resume URLs.
+ *
+ * @author ksvraja
+ *
+ */
+public class URLStoreCompletionIndex implements TusCompletionIndex {
+    private static final String PREFIX = "completed:";
+
+    private final TusURLStore store;
+
+    public URLStoreCompletionIndex(TusURLStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void markCompleted(String fingerprint, String url, long size) {
+        store.put(PREFIX + fingerprint, size + " " + url);
+    }
+
+    @Override
+    public String getCompletedURL(String fingerprint, long size) {
+        if(fingerprint == null) {
+            return null;
+        }
+
+        String value = store.get(PREFIX + fingerprint);
+        if(value == null) {
+            return null;
+        }
+
+        int separator = value.indexOf(' ');
+        if(separator < 0) {
+            return null;
+        }
+        try {
+            if(Long.parseLong(value.substring(0, separator)) != size) {
+                return null;
+            }
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        return value.substring(separator + 1);
+    }
+
+    @Override
+    public void markAllCompleted(Map<String, String> urls, Map<String, Long> sizes) {
+        Map<String, String> entries = new HashMap<String, String>();
+        for(Map.Entry<String, String> entry : urls.entrySet()) {
+            entries.put(PREFIX + entry.getKey(), sizes.get(entry.getKey()) + " " + entry.getValue());
+        }
+        store.putAll(entries);
+    }
+
+    @Override
+    public void remove(String fingerprint) {
+        store.remove(PREFIX + fingerprint);
+    }
+}
@@ -0,0 +1,175 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.zitlab.io.tus.client.TusClient;
+import com.zitlab.io.tus.client.TusFileStream;
+import com.zitlab.io.tus.client.TusProtocolException;
+
+/**
+ * Non-blocking counterpart of {@link TusClient}: uploads are started with
+ * {@link #upload(TusFileStream)} and run on the {@link HttpClient}'s asynchronous requests, so
+ * no thread waits for a response or for the client to take request data. The threads of the
+ * client's executor drive all uploads, so a client built with a small executor, e.g.
+ * <pre>
+ * HttpClient.newBuilder().executor(Executors.newFixedThreadPool(4)).build()
+ * </pre>
+ * can run thousands of uploads at the same time.
+ * <p>
+ * The settings of the given {@link TusClient} are used: base URL, headers, URL store, completion
+ * index and metrics. Its transport, compressor, checksums and rate limits are not.
+ *
+ * @author ksvraja
+ *
+ */
+public class AsyncTusClient {
+    private final TusClient client;
+    private final HttpClient httpClient;
+    private int chunkSize = 2 * 1024 * 1024;
+
+    /**
+     * Uses the {@link HttpClient} of the client's transport if it is an
+     * {@link HttpClientTransport}, otherwise a new one.
+     */
+    public AsyncTusClient(TusClient client) {
+        this(client, client.getTransport() instanceof HttpClientTransport
+                ? ((HttpClientTransport) client.getTransport()).getHttpClient()
+                : new HttpClientTransport().getHttpClient());
+    }
+
+    public AsyncTusClient(TusClient client, HttpClient httpClient) {
+        this.client = client;
+        this.httpClient = httpClient;
+    }
+
+    public TusClient getClient() {
+        return client;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Sets the maximum number of bytes sent in one PATCH request. The default is 2 MiB.
+     */
+    public void setChunkSize(int chunkSize) {
+        if(chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Start uploading. Like {@link TusClient#resumeOrCreateUpload(TusFileStream)}, an upload the
+     * completion index knows as finished is not sent again, and one found in the URL store is
+     * continued at the server's offset. The input is closed once the upload is done.
+     * <p>
+     * A failed upload is not retried. Starting it again continues it at the server's offset if
+     * resuming is enabled.
+     *
+     * @param input File to upload. Its length must be known.
+     * @return Handle of the running upload
+     */
+    public AsyncTusUpload upload(TusFileStream input) {
+        if(input.isLengthDeferred()) {
+            throw new IllegalArgumentException("uploads of deferred length are not supported");
+        }
+        AsyncTusUpload upload = new AsyncTusUpload(this, input);
+        upload.start();
+        return upload;
+    }
+
+    /**
+     * Ask the server for the current offset of an upload using a HEAD request.
+     *
+     * @param uploadURL URL of the upload
+     * @return Future completed with the number of bytes the server has received, or with a
+     * {@link TusProtocolException} for an unexpected response
+     */
+    public CompletableFuture<Long> probeOffset(URL uploadURL) {
+        CompletableFuture<HttpResponse<Void>> response;
+        try {
+            response = send(newRequest(uploadURL).method("HEAD", HttpRequest.BodyPublishers.noBody()).build());
+        } catch(IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return response.thenApply(result -> {
+            checkStatus(result, "resuming upload");
+            return parseOffset(result, "resuming upload");
+        });
+    }
+
+    /**
+     * @return Builder for a request to the URL with the headers every request carries
+     */
+    HttpRequest.Builder newRequest(URL url) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(url.toURI());
+        } catch(URISyntaxException e) {
+            throw new IOException("invalid request URL " + url, e);
+        }
+        builder.header("Tus-Resumable", TusClient.TUS_VERSION);
+        Map<String, String> headers = client.getHeaders();
+        if(headers != null) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                if(!HttpClientConnection.isRestrictedHeader(header.getKey())) {
+                    builder.header(header.getKey(), header.getValue());
+                }
+            }
+        }
+        return builder;
+    }
+
+    CompletableFuture<HttpResponse<Void>> send(HttpRequest request) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    static void checkStatus(HttpResponse<?> response, String action) {
+        int status = response.statusCode();
+        if(!(status >= 200 && status < 300)) {
+            throw new CompletionException(new TusProtocolException("unexpected status code (" + status + ") while " + action));
+        }
+    }
+
+    static long parseOffset(HttpResponse<?> response, String action) {
+        String offset = response.headers().firstValue("Upload-Offset").orElse(null);
+        if(offset == null || offset.length() == 0) {
+            throw new CompletionException(new TusProtocolException("missing upload offset in response for " + action));
+        }
+        try {
+            return Long.parseLong(offset);
+        } catch(NumberFormatException e) {
+            throw new CompletionException(new TusProtocolException("invalid upload offset in response for " + action));
+        }
+    }
+}
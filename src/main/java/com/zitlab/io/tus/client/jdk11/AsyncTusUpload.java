@@ -0,0 +1,281 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+
+import com.zitlab.io.tus.client.TusClient;
+import com.zitlab.io.tus.client.TusCompletionIndex;
+import com.zitlab.io.tus.client.TusFileStream;
+import com.zitlab.io.tus.client.TusProtocolException;
+import com.zitlab.io.tus.client.TusURLStore;
+
+/**
+ * Handle of an upload started with {@link AsyncTusClient#upload(TusFileStream)}. Each step, from
+ * looking up the upload to the PATCH requests, is started by the completion of the previous
+ * one, so the upload holds no thread while requests are in flight.
+ *
+ * @author ksvraja
+ *
+ */
+public class AsyncTusUpload {
+    private final AsyncTusClient client;
+    private final TusFileStream input;
+    private final long size;
+    private final CompletableFuture<URL> result = new CompletableFuture<>();
+    private final ProgressPublisher progress = new ProgressPublisher();
+    private final long started = System.nanoTime();
+    private volatile CompletableFuture<?> inFlight;
+    private volatile URL uploadURL;
+    private volatile long offset;
+    private String fingerprint;
+    private boolean alreadyComplete;
+    private long bytesSent;
+
+    AsyncTusUpload(AsyncTusClient client, TusFileStream input) {
+        this.client = client;
+        this.input = input;
+        this.size = input.getSize();
+        result.whenComplete((url, error) -> {
+            CompletableFuture<?> request = inFlight;
+            if(request != null) {
+                request.cancel(true);
+            }
+            try {
+                input.close();
+            } catch(IOException e) {
+                // Nothing is read from the input anymore.
+            }
+            progress.complete(error);
+        });
+    }
+
+    /**
+     * @return Future completed with the upload's URL once the server has received all of it,
+     * or with the exception which stopped it. Cancelling it cancels the upload.
+     */
+    public CompletableFuture<URL> getResult() {
+        return result;
+    }
+
+    /**
+     * @return Publisher of the offsets the upload reaches, completed once the upload is done.
+     * A subscriber only gets the latest offset when it asks for more; offsets it has no demand
+     * for are skipped.
+     */
+    public Flow.Publisher<Long> getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return Number of bytes the server has confirmed so far
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return URL of the upload, or null while it is being looked up or created
+     */
+    public URL getUploadURL() {
+        return uploadURL;
+    }
+
+    /**
+     * Stop the upload. The request in flight is abandoned and the result completes with a
+     * {@link java.util.concurrent.CancellationException}. The upload stays on the server, so it
+     * can be continued later if resuming is enabled.
+     */
+    public void cancel() {
+        result.cancel(false);
+    }
+
+    void start() {
+        input.getFingerprintFuture().whenComplete((fingerprint, error) -> {
+            if(error != null) {
+                fail(error);
+                return;
+            }
+            this.fingerprint = fingerprint;
+            try {
+                resolve();
+            } catch(IOException | RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Find out where to start: nowhere if the upload is known to be complete, at the server's
+     * offset if it is in the URL store, or at 0 after creating it.
+     */
+    private void resolve() throws IOException {
+        TusClient config = client.getClient();
+        TusCompletionIndex completionIndex = config.getCompletionIndex();
+        if(completionIndex != null && !input.isPartial() && input.hasContentFingerprint()) {
+            String completedURL = completionIndex.getCompletedURL(fingerprint, size);
+            if(completedURL != null) {
+                alreadyComplete = true;
+                uploadURL = new URL(config.getBaseURL(), completedURL);
+                sendChunk(size);
+                return;
+            }
+        }
+
+        TusURLStore store = config.getUrlStore();
+        String storedURL = config.isResumingEnabled() && store != null ? store.get(fingerprint) : null;
+        if(storedURL == null) {
+            create();
+            return;
+        }
+
+        URL url = new URL(config.getBaseURL(), storedURL);
+        long requested = System.nanoTime();
+        HttpRequest request = client.newRequest(url).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+        track(client.send(request)).whenComplete((response, error) -> step(() -> {
+            if(error != null) {
+                throw error;
+            }
+            config.getMetrics().requestCompleted("HEAD", System.nanoTime() - requested);
+            if(response.statusCode() == 404 || response.statusCode() == 410) {
+                create();
+                return;
+            }
+            AsyncTusClient.checkStatus(response, "resuming upload");
+            uploadURL = url;
+            sendChunk(AsyncTusClient.parseOffset(response, "resuming upload"));
+        }));
+    }
+
+    private void create() throws IOException {
+        TusClient config = client.getClient();
+        HttpRequest.Builder builder = client.newRequest(config.getBaseURL())
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .header("Upload-Length", Long.toString(size));
+        String encodedMetadata = input.getEncodedMetadata();
+        if(encodedMetadata.length() > 0) {
+            builder.header("Upload-Metadata", encodedMetadata);
+        }
+        if(input.isPartial()) {
+            builder.header("Upload-Concat", "partial");
+        }
+
+        long requested = System.nanoTime();
+        track(client.send(builder.build())).whenComplete((response, error) -> step(() -> {
+            if(error != null) {
+                throw error;
+            }
+            config.getMetrics().requestCompleted("POST", System.nanoTime() - requested);
+            AsyncTusClient.checkStatus(response, "creating upload");
+            String location = response.headers().firstValue("Location").orElse(null);
+            if(location == null || location.length() == 0) {
+                throw new TusProtocolException("missing upload URL in response for creating upload");
+            }
+            // Relative to the URL the response came from, which may differ after a redirect.
+            uploadURL = response.uri().resolve(location).toURL();
+            if(config.isResumingEnabled() && config.getUrlStore() != null) {
+                config.getUrlStore().put(fingerprint, location);
+            }
+            sendChunk(0);
+        }));
+    }
+
+    /**
+     * Send the chunk starting at the given offset, or complete the upload if there is none.
+     * The next chunk is sent from the response's completion.
+     */
+    private void sendChunk(long offset) throws IOException {
+        this.offset = offset;
+        progress.offer(offset);
+        if(result.isDone()) {
+            return;
+        }
+        if(offset >= size) {
+            complete();
+            return;
+        }
+
+        TusClient config = client.getClient();
+        long length = Math.min(client.getChunkSize(), size - offset);
+        HttpRequest request = client.newRequest(uploadURL)
+                .method("PATCH", new RangeBodyPublisher(input, offset, length))
+                .header("Upload-Offset", Long.toString(offset))
+                .header("Content-Type", "application/offset+octet-stream")
+                .build();
+
+        long requested = System.nanoTime();
+        track(client.send(request)).whenComplete((response, error) -> step(() -> {
+            if(error != null) {
+                throw error;
+            }
+            config.getMetrics().requestCompleted("PATCH", System.nanoTime() - requested);
+            AsyncTusClient.checkStatus(response, "uploading chunk");
+            long next = AsyncTusClient.parseOffset(response, "uploading chunk");
+            if(next <= offset || next > offset + length) {
+                throw new TusProtocolException("server answered offset " + next + " for a chunk of " + length + " bytes at " + offset);
+            }
+            config.getMetrics().bytesSent(next - offset);
+            bytesSent += next - offset;
+            sendChunk(next);
+        }));
+    }
+
+    private void complete() {
+        TusClient config = client.getClient();
+        if(!alreadyComplete) {
+            TusCompletionIndex completionIndex = config.getCompletionIndex();
+            if(completionIndex != null && !input.isPartial() && input.hasContentFingerprint()) {
+                completionIndex.markCompleted(fingerprint, uploadURL.toString(), size);
+            }
+            config.getMetrics().uploadCompleted(bytesSent, System.nanoTime() - started);
+        }
+        result.complete(uploadURL);
+    }
+
+    private <T> CompletableFuture<T> track(CompletableFuture<T> request) {
+        inFlight = request;
+        if(result.isDone()) {
+            request.cancel(true);
+        }
+        return request;
+    }
+
+    private void step(Step step) {
+        try {
+            step.run();
+        } catch(Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable error) {
+        if(error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        result.completeExceptionally(error);
+    }
+
+    private interface Step {
+        void run() throws Throwable;
+    }
+}
@@ -0,0 +1,242 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.zitlab.io.tus.client.TusConnection;
+
+/**
+ * {@link TusConnection} issuing its request through a shared {@link HttpClient}. A request body
+ * written to {@link #getOutputStream()} is streamed to the client with {@link StreamingBodyPublisher}.
+ *
+ * @author ksvraja
+ *
+ */
+class HttpClientConnection implements TusConnection {
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Headers {@link HttpRequest.Builder} rejects since the client sets them itself, in lower case.
+     */
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length",
+            "date", "expect", "from", "host", "referer", "upgrade", "via", "warning");
+
+    private final HttpClient httpClient;
+    private final URL url;
+    private final List<String[]> headers = new ArrayList<>();
+    private String method = "GET";
+    private boolean expectContinue;
+    private boolean hasBody;
+    private long contentLength = -1;
+    private int readTimeout;
+
+    private StreamingBodyPublisher body;
+    private OutputStream output;
+    private CompletableFuture<HttpResponse<Void>> responseFuture;
+    private HttpResponse<Void> response;
+
+    HttpClientConnection(HttpClient httpClient, URL url) {
+        this.httpClient = httpClient;
+        this.url = url;
+    }
+
+    @Override
+    public void setRequestMethod(String method) throws ProtocolException {
+        this.method = method;
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        headers.removeIf(header -> header[0].equalsIgnoreCase(key));
+        addRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        if(key.equalsIgnoreCase("Expect")) {
+            // HttpClient does not allow setting this header but supports the expectation itself.
+            expectContinue = value.equalsIgnoreCase("100-continue");
+            return;
+        }
+        headers.add(new String[]{key, value});
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(boolean followRedirects) {
+        // Redirects are a setting of the shared HttpClient.
+    }
+
+    @Override
+    public void setConnectTimeout(int timeout) {
+        // Connect timeouts are a setting of the shared HttpClient.
+    }
+
+    /**
+     * The timeout starts once the request body is complete, so a slowly sent body does not
+     * count against it.
+     */
+    @Override
+    public void setReadTimeout(int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+        hasBody = true;
+        contentLength = -1;
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength) {
+        hasBody = true;
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if(responseFuture == null && !hasBody) {
+            send(HttpRequest.BodyPublishers.noBody());
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(output == null) {
+            if(!hasBody || responseFuture != null) {
+                throw new ProtocolException("request has no streamed body or was already sent");
+            }
+            body = new StreamingBodyPublisher(contentLength);
+            send(body);
+            output = new BufferedOutputStream(body.getOutputStream(), BODY_BUFFER_SIZE);
+        }
+        return output;
+    }
+
+    private void send(HttpRequest.BodyPublisher publisher) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder = HttpRequest.newBuilder(url.toURI());
+        } catch(URISyntaxException e) {
+            throw new IOException("invalid request URL " + url, e);
+        }
+
+        builder.method(method, publisher).expectContinue(expectContinue);
+        for(String[] header : headers) {
+            if(!isRestrictedHeader(header[0])) {
+                builder.header(header[0], header[1]);
+            }
+        }
+
+        responseFuture = httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding());
+        if(body != null) {
+            body.setResponseFuture(responseFuture);
+        }
+    }
+
+    /**
+     * @return true if the header cannot be set on an {@link HttpRequest.Builder} and has to be
+     * skipped
+     */
+    static boolean isRestrictedHeader(String name) {
+        return RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        HttpResponse<Void> response = awaitResponse();
+        return response == null ? -1 : response.statusCode();
+    }
+
+    private HttpResponse<Void> awaitResponse() throws IOException {
+        if(response != null) {
+            return response;
+        }
+
+        if(responseFuture == null) {
+            if(hasBody) {
+                // Nothing has been written yet, so the body is empty.
+                getOutputStream();
+            } else {
+                connect();
+            }
+        }
+        if(output != null) {
+            output.close();
+        }
+
+        try {
+            response = readTimeout > 0 ? responseFuture.get(readTimeout, TimeUnit.MILLISECONDS) : responseFuture.get();
+            return response;
+        } catch(TimeoutException e) {
+            disconnect();
+            throw new SocketTimeoutException("no response within " + readTimeout + " ms");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for response");
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            HttpResponse<Void> response = awaitResponse();
+            return response.headers().firstValue(name).orElse(null);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public URL getURL() {
+        return url;
+    }
+
+    @Override
+    public void disconnect() {
+        if(body != null) {
+            body.abort();
+        }
+        if(responseFuture != null) {
+            responseFuture.cancel(true);
+        }
+    }
+}
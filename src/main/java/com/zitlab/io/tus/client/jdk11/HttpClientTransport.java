@@ -0,0 +1,70 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+import com.zitlab.io.tus.client.TusConnection;
+import com.zitlab.io.tus.client.TusTransport;
+
+/**
+ * {@link TusTransport} built on the JDK 11 {@link HttpClient}. All connections opened by one
+ * transport share a single client, which multiplexes concurrent requests over a few HTTP/2
+ * connections where the server supports it and reuses TLS sessions, instead of opening a new
+ * socket for every request.
+ *
+ * Share one instance between all {@link com.zitlab.io.tus.client.TusClient}s talking to the
+ * same servers to get the most out of connection reuse.
+ *
+ * @author ksvraja
+ *
+ */
+public class HttpClientTransport implements TusTransport {
+    private final HttpClient httpClient;
+
+    public HttpClientTransport() {
+        this(Duration.ofSeconds(5));
+    }
+
+    /**
+     * @param connectTimeout Timeout for establishing new connections. The client wide setting is
+     * used since {@link HttpClient} has no per request connect timeout.
+     */
+    public HttpClientTransport(Duration connectTimeout) {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(connectTimeout)
+                .build());
+    }
+
+    public HttpClientTransport(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public TusConnection openConnection(URL url) throws IOException {
+        return new HttpClientConnection(httpClient, url);
+    }
+}
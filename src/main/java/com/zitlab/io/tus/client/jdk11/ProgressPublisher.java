@@ -0,0 +1,123 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the offsets an upload reaches. A subscriber gets the latest offset whenever it has
+ * demand; offsets reached while it has none are skipped instead of buffered, so a slow
+ * subscriber neither holds up the upload nor piles up memory. The last offset is always
+ * delivered before the subscriber is completed, unless the upload failed.
+ *
+ * @author ksvraja
+ *
+ */
+class ProgressPublisher implements Flow.Publisher<Long> {
+    private final List<ProgressSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile long offset = -1;
+    private volatile Throwable error;
+    private volatile boolean completed;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Long> subscriber) {
+        ProgressSubscription subscription = new ProgressSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    void offer(long offset) {
+        this.offset = offset;
+        for(ProgressSubscription subscription : subscriptions) {
+            subscription.drain();
+        }
+    }
+
+    /**
+     * @param error Cause of the failure, or null if the upload finished
+     */
+    void complete(Throwable error) {
+        this.error = error;
+        this.completed = true;
+        for(ProgressSubscription subscription : subscriptions) {
+            subscription.drain();
+        }
+    }
+
+    private class ProgressSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Long> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private boolean terminated;
+        private long delivered = -1;
+
+        ProgressSubscription(Flow.Subscriber<? super Long> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("non-positive request " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void drain() {
+            if(pending.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                if(cancelled || terminated) {
+                    continue;
+                }
+                // Read in this order so the final offset is seen once completion is.
+                boolean done = completed;
+                long current = offset;
+                if(current != delivered && current >= 0 && demand.get() > 0) {
+                    delivered = current;
+                    demand.decrementAndGet();
+                    subscriber.onNext(current);
+                }
+                if(done && (error != null || delivered == current)) {
+                    terminated = true;
+                    subscriptions.remove(this);
+                    if(error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                }
+            } while(pending.decrementAndGet() != 0);
+        }
+    }
+}
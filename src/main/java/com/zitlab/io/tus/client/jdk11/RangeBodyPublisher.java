@@ -0,0 +1,132 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zitlab.io.tus.client.TusFileStream;
+
+/**
+ * Request body reading a byte range of a {@link TusFileStream} only when
+ * {@link java.net.http.HttpClient} asks for more, so no thread waits for the client to take the
+ * data and at most one buffer per requested item is held in memory. Every subscription reads
+ * the range from its start, so the client may send the body again.
+ *
+ * @author ksvraja
+ *
+ */
+class RangeBodyPublisher implements HttpRequest.BodyPublisher {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TusFileStream input;
+    private final long start;
+    private final long length;
+
+    RangeBodyPublisher(TusFileStream input, long start, long length) {
+        this.input = input;
+        this.start = start;
+        this.length = length;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        RangeSubscription subscription = new RangeSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    private class RangeSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final long end = start + length;
+        private long position = start;
+        private volatile boolean cancelled;
+        private boolean done;
+
+        RangeSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("non-positive request " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Emit buffers while there is demand. Only one thread drains at a time; a call made
+         * while another thread drains makes that thread check the demand once more.
+         */
+        void drain() {
+            if(pending.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while(!cancelled && !done && position < end && demand.get() > 0) {
+                    ByteBuffer buffer;
+                    try {
+                        buffer = read();
+                    } catch(IOException e) {
+                        done = true;
+                        subscriber.onError(e);
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(buffer);
+                }
+                if(!cancelled && !done && position == end) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            } while(pending.decrementAndGet() != 0);
+        }
+
+        private ByteBuffer read() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - position));
+            while(buffer.hasRemaining()) {
+                int read = input.readAt(buffer, position);
+                if(read == -1) {
+                    throw new IOException("upload ended at " + position + " instead of " + end);
+                }
+                position += read;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
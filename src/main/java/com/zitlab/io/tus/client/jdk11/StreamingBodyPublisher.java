@@ -0,0 +1,159 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.client.jdk11;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Request body which is pushed by a writer through {@link #getOutputStream()} while
+ * {@link java.net.http.HttpClient} pulls it. Writes block until the client signals demand, so at
+ * most one write's worth of data is held in memory per request.
+ *
+ * @author ksvraja
+ *
+ */
+class StreamingBodyPublisher implements HttpRequest.BodyPublisher, Flow.Subscription {
+    private final long contentLength;
+    private final Object lock = new Object();
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private CompletableFuture<?> responseFuture;
+    private long demand;
+    private boolean cancelled;
+    private boolean completed;
+
+    StreamingBodyPublisher(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        synchronized(lock) {
+            if(this.subscriber != null) {
+                // The body is streamed once and cannot be replayed for a second subscriber.
+                subscriber.onSubscribe(this);
+                subscriber.onError(new IOException("streamed request body cannot be sent twice"));
+                return;
+            }
+            this.subscriber = subscriber;
+            lock.notifyAll();
+        }
+        subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized(lock) {
+            demand += n;
+            if(demand < 0) {
+                demand = Long.MAX_VALUE;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        abort();
+    }
+
+    void abort() {
+        synchronized(lock) {
+            cancelled = true;
+            lock.notifyAll();
+        }
+    }
+
+    void setResponseFuture(CompletableFuture<?> responseFuture) {
+        synchronized(lock) {
+            this.responseFuture = responseFuture;
+        }
+        // Wake up a writer waiting for demand if the server answered without reading the body,
+        // e.g. after rejecting an "Expect: 100-continue".
+        responseFuture.whenComplete((response, error) -> abort());
+    }
+
+    private Flow.Subscriber<? super ByteBuffer> awaitDemand() throws IOException {
+        synchronized(lock) {
+            while(!cancelled && (subscriber == null || demand == 0)) {
+                try {
+                    lock.wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while streaming request body");
+                }
+            }
+            if(cancelled) {
+                throw new IOException("request body stream closed by the HTTP client");
+            }
+            demand--;
+            return subscriber;
+        }
+    }
+
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(len == 0) {
+                    return;
+                }
+                // The buffer handed to the client must not change afterwards, so it is copied.
+                awaitDemand().onNext(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            }
+
+            @Override
+            public void close() throws IOException {
+                Flow.Subscriber<? super ByteBuffer> target;
+                synchronized(lock) {
+                    if(completed) {
+                        return;
+                    }
+                    completed = true;
+                    while(!cancelled && subscriber == null) {
+                        try {
+                            lock.wait();
+                        } catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("interrupted while closing request body");
+                        }
+                    }
+                    target = cancelled ? null : subscriber;
+                }
+                if(target != null) {
+                    target.onComplete();
+                }
+            }
+        };
+    }
+}
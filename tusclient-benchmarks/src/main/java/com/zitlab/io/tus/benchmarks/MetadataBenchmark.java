@@ -0,0 +1,91 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zitlab.io.tus.client.TusFileStream;
+
+/**
+ * Cost of {@link TusFileStream#getEncodedMetadata()}, which Base64 encodes every value, for a
+ * number of entries of a given value length.
+ *
+ * @author ksvraja
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+    @Param({"1", "8", "32"})
+    public int entries;
+
+    @Param({"16", "256"})
+    public int valueLength;
+
+    private File file;
+    private TusFileStream stream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("tus-bench", ".bin");
+        file.deleteOnExit();
+        stream = new TusFileStream(file);
+
+        StringBuilder value = new StringBuilder(valueLength);
+        for(int i = 0; i < valueLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        Map<String, String> metadata = new HashMap<String, String>();
+        for(int i = 0; i < entries; i++) {
+            metadata.put("key" + i, value.toString());
+        }
+        stream.setMetadata(metadata);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public String encodedMetadata() {
+        return stream.getEncodedMetadata();
+    }
+}
@@ -0,0 +1,115 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zitlab.io.tus.client.FingerprintNotFoundException;
+import com.zitlab.io.tus.client.ResumingNotEnabledException;
+import com.zitlab.io.tus.client.TusClient;
+import com.zitlab.io.tus.client.TusFileStream;
+import com.zitlab.io.tus.client.TusProtocolException;
+import com.zitlab.io.tus.client.TusURLStore;
+import com.zitlab.io.tus.client.TusUploader;
+
+/**
+ * Latency of {@link TusClient#resumeUpload(TusFileStream)}: opening the file, looking up its
+ * URL in the store and asking the server for the offset with a HEAD request.
+ *
+ * @author ksvraja
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResumeBenchmark {
+    @Param({"0"})
+    public long latencyMillis;
+
+    private StubTusServer server;
+    private TusClient client;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubTusServer(latencyMillis, 0);
+        file = File.createTempFile("tus-bench", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            raFile.setLength(1024 * 1024);
+        } finally {
+            raFile.close();
+        }
+
+        final String path = server.createUpload(file.length(), file.length() / 2);
+        client = new TusClient();
+        client.setBaseURL(server.getCreationURL());
+        client.setResumingEnabled(true);
+        client.setUrlStore(new TusURLStore() {
+            @Override
+            public void put(String fingerprint, String url) {
+            }
+
+            @Override
+            public String get(String fingerprint) {
+                return path;
+            }
+
+            @Override
+            public void remove(String fingerprint) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public long resume() throws TusProtocolException, IOException, ResumingNotEnabledException, FingerprintNotFoundException {
+        TusFileStream stream = new TusFileStream(file);
+        try {
+            TusUploader uploader = client.resumeUpload(stream);
+            return uploader.getOffset();
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal in-process tus server on the loopback interface. It implements the core protocol and
+ * the creation extension, but only counts the bytes it receives instead of storing them, so it
+ * costs the benchmarks as little as possible. A fixed latency can be added to every request
+ * and the upload bandwidth can be limited to model a real network.
+ *
+ * @author ksvraja
+ *
+ */
+public class StubTusServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * @param latencyMillis Delay added before answering every request
+     * @param bytesPerSecond Maximum rate at which a request body is read, 0 for no limit
+     */
+    public StubTusServer(long latencyMillis, long bytesPerSecond) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/files", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return URL uploads are created at
+     */
+    public URL getCreationURL() throws IOException {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/files");
+    }
+
+    /**
+     * Create an upload without a request, e.g. to resume it in a benchmark.
+     *
+     * @return Path of the new upload
+     */
+    public String createUpload(long length, long offset) {
+        String path = "/files/" + ids.incrementAndGet();
+        Upload upload = new Upload(length);
+        upload.offset.set(offset);
+        uploads.put(path, upload);
+        return path;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        pause(latencyMillis);
+
+        String method = exchange.getRequestMethod();
+        String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+        if(override != null) {
+            method = override;
+        }
+        exchange.getResponseHeaders().add("Tus-Resumable", "1.0.0");
+
+        if("POST".equals(method)) {
+            String length = exchange.getRequestHeaders().getFirst("Upload-Length");
+            String path = createUpload(length == null ? -1 : Long.parseLong(length), 0);
+            exchange.getResponseHeaders().add("Location", path);
+            exchange.sendResponseHeaders(201, -1);
+            return;
+        }
+
+        Upload upload = uploads.get(exchange.getRequestURI().getPath());
+        if(upload == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        if("HEAD".equals(method)) {
+            exchange.getResponseHeaders().add("Upload-Offset", Long.toString(upload.offset.get()));
+            exchange.getResponseHeaders().add("Upload-Length", Long.toString(upload.length));
+            exchange.sendResponseHeaders(200, -1);
+        } else if("PATCH".equals(method)) {
+            long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+            if(offset != upload.offset.get()) {
+                exchange.sendResponseHeaders(409, -1);
+                return;
+            }
+            upload.offset.addAndGet(drain(exchange.getRequestBody()));
+            exchange.getResponseHeaders().add("Upload-Offset", Long.toString(upload.offset.get()));
+            exchange.sendResponseHeaders(204, -1);
+        } else if("DELETE".equals(method)) {
+            uploads.remove(exchange.getRequestURI().getPath());
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            exchange.sendResponseHeaders(405, -1);
+        }
+    }
+
+    /**
+     * Read and discard a request body, no faster than the bandwidth limit allows.
+     */
+    private long drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        long start = System.nanoTime();
+        int read;
+        while((read = body.read(buffer)) != -1) {
+            total += read;
+            if(bytesPerSecond > 0) {
+                long due = start + total * 1000000000L / bytesPerSecond;
+                pause((due - System.nanoTime()) / 1000000);
+            }
+        }
+        return total;
+    }
+
+    private static void pause(long millis) throws IOException {
+        if(millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    private static class Upload {
+        final long length;
+        final AtomicLong offset = new AtomicLong();
+
+        Upload(long length) {
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/** 
+ * (C) Copyright 2018 ZitLab (ksvraja@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.zitlab.io.tus.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zitlab.io.tus.client.TusClient;
+import com.zitlab.io.tus.client.TusFileStream;
+import com.zitlab.io.tus.client.TusProtocolException;
+import com.zitlab.io.tus.client.TusUploader;
+
+/**
+ * Throughput of a whole upload driven by {@link TusUploader#uploadChunk()} for different chunk
+ * sizes. The score is in uploads per second; multiply by fileSize for bytes per second.
+ * Latency and bandwidth of the stub server can be set with -p latencyMillis=... and
+ * -p bytesPerSecond=...
+ *
+ * @author ksvraja
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadChunkBenchmark {
+    @Param({"65536", "262144", "2097152"})
+    public int chunkSize;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public long bytesPerSecond;
+
+    @Param({"false"})
+    public boolean transferTo;
+
+    private StubTusServer server;
+    private TusClient client;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubTusServer(latencyMillis, bytesPerSecond);
+        client = new TusClient();
+        client.setBaseURL(server.getCreationURL());
+
+        file = File.createTempFile("tus-bench", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+        try {
+            raFile.setLength(fileSize);
+        } finally {
+            raFile.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public long upload() throws TusProtocolException, IOException {
+        TusUploader uploader = client.createUpload(new TusFileStream(file));
+        uploader.setChunkSize(chunkSize);
+        uploader.setTransferToEnabled(transferTo);
+        while(uploader.uploadChunk() > -1) {
+            // Keep sending.
+        }
+        uploader.finish();
+        return uploader.getOffset();
+    }
+}